@@ -0,0 +1,24 @@
+package comics.commands;
+
+// Descriptions of the parameters that several commands take, written once so that they read the same everywhere
+final class CommonParameters {
+
+    static final String WRITER =
+        "Engine used to write the .cbz files: 'channel' (default, reads every page once), 'parallel' or 'stream'";
+    static final String RECURSIVE =
+        "If set, the command also works on every directory under CWD, starting while they are still being listed";
+    static final String VERIFY =
+        "If set, the crc-32 of every file extracted, or copied as it is into the new comic, is checked, and a comic that fails is left untouched";
+    static final String THREADS =
+        "CPU-bound jobs running at once: a number, or 'auto' to find the best one (default: available processors)";
+    static final String IO_THREADS =
+        "I/O-bound jobs running at once: a number, or 'auto' to find the best one (default: available processors, no limit with virtual threads)";
+    static final String VIRTUAL_THREADS =
+        "If set, entries are processed on virtual threads and only CPU-heavy stages are limited by --threads";
+    static final String MEMORY_BUDGET =
+        "Memory, in MB, that the entries being processed at the same time may take (default: 3/4 of the heap)";
+    static final String EXTRACTION_THREADS =
+        "Threads extracting the entries of a single comic at once, for zip files and non-solid archives (default: 1)";
+
+    private CommonParameters() {}
+}
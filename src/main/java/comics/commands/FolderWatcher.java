@@ -0,0 +1,210 @@
+package comics.commands;
+
+import cli.LogUtils;
+import comics.commands.GenericFileListOperation.CommandProcessor;
+import comics.commands.GenericFileListOperation.FileSelector;
+import comics.commands.GenericFileListOperation.FileSkipper;
+import comics.commands.GenericFileListOperation.MemoryCost;
+import comics.utils.MemoryBudget;
+import comics.utils.Throttle;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static comics.utils.Utils.emptyIfNull;
+
+/**
+ * Runs a command on every selected file that shows up in a directory, for as long as the thread is not
+ * interrupted or the JVM is not shutting down; either way, the files being processed are finished.  A file is
+ * only handed over once it has been quiet, with the same size and modification time, for a while: whoever is
+ * copying it has most likely finished.  The throttles and the memory budget apply as in
+ * GenericFileListOperation; the files already in the directory when the watch starts are processed first.
+ */
+class FolderWatcher {
+
+    private final static Logger logger = LogUtils.getDefaultLogger();
+
+    // Size and modification time of a file the last time it was seen, and when it will be considered complete
+    private record Sighting(long size, long lastModified, long deadline) {}
+
+    private final Path directory;
+    private final long quietMillis;
+    private final Function<File, Throttle> throttle;
+    private final Function<File, MemoryCost> memoryCost;
+    private final Map<Path, Sighting> pending = new HashMap<>();
+    private final Set<Path> inFlight = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param directory Directory to watch
+     * @param quietMillis Time a file must stay untouched before it is processed
+     * @param throttle Decides how many files are processed at once, by kind of file
+     * @param memoryCost Heap that a file is expected to take, by kind of file
+     */
+    FolderWatcher(
+        Path directory,
+        long quietMillis,
+        Function<File, Throttle> throttle,
+        Function<File, MemoryCost> memoryCost
+    ) {
+        assert directory != null : "Please watch a non-null directory";
+        assert directory.toFile().isDirectory() : "Please watch a directory";
+        this.directory = directory;
+        this.quietMillis = quietMillis;
+        this.throttle = throttle;
+        this.memoryCost = memoryCost;
+    }
+
+    /**
+     * Blocks until the thread is interrupted, waiting for the files being processed before returning.  Ctrl+C
+     *  interrupts it too, and the JVM waits for those files before exiting
+     * @param selector Files worth processing
+     * @param processor What to do with every one of them
+     * @param skipper Files left in their final form, such as the comics written by the processor itself
+     * @throws IOException If the directory cannot be watched
+     */
+    void watch(FileSelector selector, CommandProcessor processor, FileSkipper skipper) throws IOException {
+        var watching = Thread.currentThread();
+        var stopped = new CountDownLatch(1);
+        var shutdownHook = new Thread(() -> {
+            watching.interrupt();
+            try {
+                stopped.await();
+            } catch (InterruptedException e) {
+                // Exiting anyway
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+        try {
+            watchUntilInterrupted(selector, processor, skipper);
+        } finally {
+            stopped.countDown();
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // Already shutting down, the hook is the one that stopped us
+            }
+        }
+    }
+
+    private void watchUntilInterrupted(
+        FileSelector selector,
+        CommandProcessor processor,
+        FileSkipper skipper
+    ) throws IOException {
+        try (
+            var watchService = directory.getFileSystem().newWatchService();
+            // Enough platform workers for both throttles to be busy at once
+            var workers = Throttle.isVirtualThreads() ?
+                Executors.newVirtualThreadPerTaskExecutor() :
+                Executors.newFixedThreadPool(Math.max(1, Throttle.io().getMaxPermits() + Throttle.cpu().getMaxPermits()))
+        ) {
+            directory.register(
+                watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY
+            );
+            // Whatever arrived while nobody was watching
+            for (var file: emptyIfNull(directory.toFile().listFiles())) see(file.toPath());
+            System.out.printf("Watching %s, press Ctrl+C to stop%n", directory);
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    var key = watchService.poll(timeToNextDeadline(), TimeUnit.MILLISECONDS);
+                    if (key != null) {
+                        for (var event: key.pollEvents()) {
+                            if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                                for (var file: emptyIfNull(directory.toFile().listFiles())) see(file.toPath());
+                            else if (event.context() instanceof Path path) see(directory.resolve(path));
+                        }
+                        if (!key.reset()) break;
+                    }
+                    dispatchQuietFiles(selector, processor, skipper, workers);
+                }
+            } catch (InterruptedException ie) {
+                logger.log(Level.FINE, String.format("Stopped watching %s", directory));
+            }
+        }
+    }
+
+    // Every event about a file puts its deadline off
+    private void see(Path path) {
+        if (inFlight.contains(path)) return;
+        var file = path.toFile();
+        if (!file.isFile()) {
+            pending.remove(path);
+            return;
+        }
+        pending.put(path, new Sighting(file.length(), file.lastModified(), System.currentTimeMillis() + quietMillis));
+    }
+
+    private long timeToNextDeadline() {
+        var now = System.currentTimeMillis();
+        return pending.values().stream().mapToLong(s -> Math.max(1, s.deadline() - now)).min().orElse(quietMillis);
+    }
+
+    private void dispatchQuietFiles(
+        FileSelector selector,
+        CommandProcessor processor,
+        FileSkipper skipper,
+        ExecutorService workers
+    ) {
+        var now = System.currentTimeMillis();
+        for (var it = pending.entrySet().iterator(); it.hasNext(); ) {
+            var entry = it.next();
+            var path = entry.getKey();
+            var sighting = entry.getValue();
+            if (sighting.deadline() > now) continue;
+            var file = path.toFile();
+            // Some writers do not tell about every change: check again before trusting the file
+            if (file.isFile() && (file.length() != sighting.size() || file.lastModified() != sighting.lastModified())) {
+                entry.setValue(new Sighting(file.length(), file.lastModified(), now + quietMillis));
+                continue;
+            }
+            it.remove();
+            if (!file.isFile() || !selector.filter(file)) continue;
+            if (skipper != null && skipper.skip(file)) {
+                logger.log(Level.FINE, String.format("Skipped entry %s, already processed", file));
+                continue;
+            }
+            inFlight.add(path);
+            workers.submit(() -> process(file, processor));
+        }
+    }
+
+    private void process(File file, CommandProcessor processor) {
+        var size = file.length();
+        var throttle = this.throttle.apply(file);
+        try {
+            throttle.acquire();
+            try {
+                var memory = MemoryBudget.get().acquire(memoryCost.apply(file).estimate(size));
+                try {
+                    processor.processCommand(file);
+                } finally {
+                    MemoryBudget.get().release(memory);
+                }
+            } finally {
+                throttle.release(size);
+            }
+            logger.log(Level.FINE, String.format("Processed entry %s", file));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            System.out.printf("Could not process %s - %s%n", file.getName(), e.getMessage());
+        } finally {
+            inFlight.remove(file.toPath());
+        }
+    }
+}
@@ -1,25 +1,95 @@
 package comics.commands;
 
 import cli.LogUtils;
+import comics.utils.Journal;
+import comics.utils.MemoryBudget;
+import comics.utils.Throttle;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
-import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Hashtable;
-import java.util.concurrent.ForkJoinPool;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
-import static comics.utils.Utils.emptyIfNull;
-import static comics.utils.Utils.wrapWithProgressBar;
+import static comics.utils.Utils.estimatedSizeOf;
+import static comics.utils.Utils.humanReadableSize;
+import static comics.utils.Utils.newProgress;
 
+/**
+ * Runs a command on every selected entry of a directory or, if recursive, of the whole tree under it.  A pool of
+ * workers, no bigger than the entries found, takes the entries from a shared queue, biggest first (for directories,
+ * what their listing shows), as soon as they are discovered.  The throttle decides how many of them are processed at
+ * once, and the memory budget whether the next one fits in the heap along with those already running
+ */
 public record GenericFileListOperation(
     Path cwd,
-    String caption
+    String caption,
+    Throttle throttle,
+    MemoryCost memoryCost,
+    Options options,
+    Journal journal
 ) {
     private final static Logger logger = LogUtils.getDefaultLogger();
 
+    /**
+     * How the entries are scheduled, as given on the command line
+     * @param threads CPU-bound jobs running at once
+     * @param ioThreads I/O-bound jobs running at once
+     * @param virtualThreads If set, entries are processed on virtual threads
+     * @param memoryBudget MB that the entries being processed at once may take
+     * @param recursive If set, every directory under CWD is worked on too
+     */
+    public record Options(
+        String threads,
+        String ioThreads,
+        boolean virtualThreads,
+        String memoryBudget,
+        boolean recursive
+    ) {
+        // Sets up the throttles and the memory budget that every entry goes through; to be called once per run
+        public Options configure() {
+            MemoryBudget.configure(memoryBudget);
+            Throttle.configure(threads, ioThreads, virtualThreads);
+            return this;
+        }
+    }
+
+    // Estimated heap taken while processing an entry
+    @FunctionalInterface
+    interface MemoryCost {
+        // Buffers, archive directories and the like, taken by any entry
+        long JOB_OVERHEAD = 16L * 1024 * 1024;
+        // The stream writer keeps whole pages in memory; the rest of the engines just their buffers
+        double STREAM_WRITER_PER_BYTE = 0.25;
+
+        long estimate(long size);
+
+        /**
+         * @param fixed Bytes taken by any entry, no matter its size
+         * @param perInputByte Bytes taken for every byte of the entry
+         */
+        static MemoryCost of(long fixed, double perInputByte) {
+            return size -> fixed + (long) (size * perInputByte);
+        }
+    }
+
     @FunctionalInterface
     interface FileSelector {
         boolean filter(File file);
@@ -30,6 +100,46 @@ public record GenericFileListOperation(
         void processCommand(File file) throws Exception;
     }
 
+    // Entries that a previous run already left in their final form
+    @FunctionalInterface
+    interface FileSkipper {
+        boolean skip(File file);
+    }
+
+    // An entry and its size: a file counts its own, a directory the files it lists (pages of a comic, usually)
+    private record Entry(File file, long size) {}
+
+    private static final Comparator<Entry> BIGGEST_FIRST = Comparator.comparingLong(Entry::size).reversed();
+    // Sorts after any entry; tells the workers that discovery is over
+    private static final Entry END = new Entry(null, Long.MIN_VALUE);
+
+    @FunctionalInterface
+    private interface EntryTask {
+        boolean run(Entry entry);
+    }
+
+    @FunctionalInterface
+    private interface Discovery {
+        void discover(Consumer<Entry> dispatch) throws Exception;
+    }
+
+    /**
+     * @param cwd Directory to work on
+     * @param caption Shown on the progress bar
+     * @param throttle Decides how many entries are processed at once
+     * @param memoryCost Heap that an entry is expected to take
+     * @param options Scheduling options, already configured
+     */
+    public GenericFileListOperation(
+        Path cwd,
+        String caption,
+        Throttle throttle,
+        MemoryCost memoryCost,
+        Options options
+    ) {
+        this(cwd, caption, throttle, memoryCost, options, null);
+    }
+
     int execute(
         FileSelector selector,
         CommandProcessor processor
@@ -40,48 +150,104 @@ public record GenericFileListOperation(
     int execute(
         FileSelector selector,
         CommandProcessor processor,
-        FileValidator validator
+        Supplier<FileValidator> validator
+    ) {
+        return execute(selector, processor, validator, null);
+    }
+
+    int execute(
+        FileSelector selector,
+        CommandProcessor processor,
+        Supplier<FileValidator> validator,
+        FileSkipper skipper
     ) {
         var ret = 0;
         try {
             assert cwd != null : "Please run the command on a non-null directory";
             assert cwd.toFile().isDirectory() : "Please run the command on a directory";
+            assert options != null : "Please configure the scheduling options";
 
+            // Whatever an interrupted run left half done is either put in place or cleaned for a new attempt
+            if (journal != null) journal.recover();
             var errors = new Hashtable<File, Exception>();
-            var entries = Arrays.stream(emptyIfNull(cwd.toFile().listFiles())).filter(selector::filter).toList();
-            if (validator != null) {
-                entries.forEach(validator::readFile);
-                validator.validate();
-            }
-            try (var myPool = new ForkJoinPool(8)) {
-                var counter = new AtomicInteger(0);
-                myPool.submit(() ->
-                    wrapWithProgressBar(entries.parallelStream(), caption).forEach(entry -> {
+            var skipped = new AtomicInteger(0);
+            var skippedBytes = new AtomicLong(0);
+            var counter = new AtomicInteger(0);
+            var total = new AtomicInteger(0);
+            try (var progress = newProgress(caption, 0)) {
+                // Returns false if the thread was interrupted
+                EntryTask task = entry -> {
+                    var file = entry.file();
+                    try {
+                        if ((journal != null && journal.isDone(file)) || (skipper != null && skipper.skip(file))) {
+                            skipped.incrementAndGet();
+                            skippedBytes.addAndGet(entry.size());
+                            logger.log(Level.FINE, String.format("Skipped entry %s, already processed", file));
+                            return true;
+                        }
+                        throttle.acquire();
                         try {
-                            processor.processCommand(entry);
-                            logger.log(
-                                Level.FINE,
-                                String.format(
-                                    "Processed entry %s [%d/%d]",
-                                    entry,
-                                    counter.incrementAndGet(),
-                                    entries.size()
-                                )
-                            );
-                        } catch (Exception e) {
-                            errors.put(entry, e);
+                            var memory = MemoryBudget.get().acquire(memoryCost.estimate(entry.size()));
+                            try {
+                                if (journal != null) journal.record(file, Journal.State.STARTED);
+                                processor.processCommand(file);
+                                if (journal != null) journal.record(file, Journal.State.DONE);
+                            } finally {
+                                MemoryBudget.get().release(memory);
+                            }
+                        } finally {
+                            throttle.release(entry.size());
                         }
-                    })
-                ).get();
+                        logger.log(
+                            Level.FINE,
+                            String.format(
+                                "Processed entry %s [%d/%d]",
+                                file,
+                                counter.incrementAndGet(),
+                                total.get()
+                            )
+                        );
+                    } catch (InterruptedException | InterruptedIOException e) {
+                        Thread.currentThread().interrupt();
+                        errors.put(file, e);
+                        return false;
+                    } catch (Exception e) {
+                        errors.put(file, e);
+                        recordFailure(file, e);
+                    } finally {
+                        progress.step();
+                    }
+                    return true;
+                };
+                // Work starts with the first directory listed, while the rest of the tree is still being walked
+                Discovery discovery = dispatch -> discover(selector, validator, errors, batch -> {
+                    progress.setTotal(total.addAndGet(batch.size()));
+                    batch.forEach(dispatch);
+                });
+                var maxWorkers = Math.max(1, throttle.getMaxPermits());
+                runOnWorkers(
+                    discovery,
+                    task,
+                    maxWorkers,
+                    options.virtualThreads()
+                        ? Executors.newVirtualThreadPerTaskExecutor()
+                        : Executors.newFixedThreadPool(maxWorkers)
+                );
             }
             // Report
+            if (skipped.get() > 0)
+                System.out.printf(
+                    "Skipped %d entries already processed (%s not read again)%n",
+                    skipped.get(),
+                    humanReadableSize(skippedBytes.get())
+                );
             if (!errors.isEmpty())
                 System.out.printf(
                     "Could not process the following entries:%n%s",
                     String.join(
                         "\n",
                         errors.entrySet().stream().map(
-                            e -> String.format("%s - %s", e.getKey().getName(), e.getValue().getMessage())
+                            e -> String.format("%s - %s", cwd.relativize(e.getKey().toPath()), e.getValue().getMessage())
                         ).toList()
                     )
                 );
@@ -91,4 +257,99 @@ public record GenericFileListOperation(
         }
         return ret;
     }
+
+    private void recordFailure(File file, Exception e) {
+        if (journal == null) return;
+        try {
+            journal.record(file, Journal.State.FAILED);
+        } catch (IOException ioe) {
+            e.addSuppressed(ioe);
+        }
+    }
+
+    /**
+     * Lists CWD and, if recursive, every directory under it that the selector leaves out.  The selected entries
+     *  of a directory are validated together and handed over biggest first, before the next directory is read.
+     *  Outside recursive mode a validation error stops the whole run; otherwise, only that directory is left out
+     */
+    private void discover(
+        FileSelector selector,
+        Supplier<FileValidator> validator,
+        Map<File, Exception> errors,
+        Consumer<List<Entry>> dispatch
+    ) throws Exception {
+        var pending = new ArrayDeque<File>();
+        pending.add(cwd.toFile());
+        while (!pending.isEmpty()) {
+            var directory = pending.poll();
+            var selected = new ArrayList<File>();
+            var subdirectories = new ArrayList<File>();
+            try (var stream = Files.newDirectoryStream(directory.toPath())) {
+                for (var path : stream) {
+                    var file = path.toFile();
+                    if (selector.filter(file)) selected.add(file);
+                    else if (options.recursive() && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) subdirectories.add(file);
+                }
+            } catch (IOException e) {
+                if (!options.recursive()) throw e;
+                errors.put(directory, e);
+                continue;
+            }
+            subdirectories.sort(Comparator.naturalOrder());
+            pending.addAll(subdirectories);
+            if (validator != null) {
+                var fileValidator = validator.get();
+                selected.forEach(fileValidator::readFile);
+                try {
+                    fileValidator.validate();
+                } catch (Exception e) {
+                    if (!options.recursive()) throw e;
+                    errors.put(directory, e);
+                    continue;
+                }
+            }
+            // Longest jobs first: a big comic picked up last would keep the whole run waiting for it alone.
+            //  Measured beforehand, since the entry is usually gone once processed, and from the listing alone: walking
+            //  every directory down would keep the first job waiting for the whole tree
+            var batch = selected.stream()
+                .map(file -> new Entry(file, estimatedSizeOf(file)))
+                .sorted(BIGGEST_FIRST)
+                .toList();
+            if (!batch.isEmpty()) dispatch.accept(batch);
+        }
+    }
+
+    // Workers take the biggest entry discovered so far.  A new one starts with every entry found, up to as many as
+    //  the throttle may ever admit: a directory with three comics does not need more than three.  Virtual threads
+    //  are workers too, so that they honour the same order instead of racing for the throttle; blocking on disk or
+    //  on other processes costs them nothing, and the CPU-heavy stages wait for Throttle.cpuStage
+    private void runOnWorkers(
+        Discovery discovery,
+        EntryTask task,
+        int maxWorkers,
+        ExecutorService executor
+    ) throws Exception {
+        var queue = new PriorityBlockingQueue<Entry>(64, BIGGEST_FIRST);
+        var started = new AtomicInteger(0);
+        try (var workers = executor) {
+            Callable<Void> worker = () -> {
+                for (var entry = queue.take(); entry != END; entry = queue.take())
+                    if (!task.run(entry)) return null;
+                // Leave it there for the other workers
+                queue.add(END);
+                return null;
+            };
+            try {
+                discovery.discover(entry -> {
+                    queue.add(entry);
+                    if (started.get() < maxWorkers) {
+                        started.incrementAndGet();
+                        workers.submit(worker);
+                    }
+                });
+            } finally {
+                queue.add(END);
+            }
+        }
+    }
 }
@@ -3,8 +3,13 @@ package comics.commands;
 import cli.annotations.Command;
 import cli.annotations.Parameter;
 import cli.annotations.Run;
+import comics.commands.GenericFileListOperation.MemoryCost;
+import comics.commands.GenericFileListOperation.Options;
+import comics.logic.ComicManifest;
 import comics.logic.CompressionService;
 import comics.logic.RepeatedNamesValidator;
+import comics.logic.compression.CbzWriterEngine;
+import comics.utils.Throttle;
 import lombok.Setter;
 
 import java.io.File;
@@ -30,13 +35,55 @@ public class PackCommand {
     )
     public Boolean garbageCollector = false;
 
+    @Parameter(
+        name="w",
+        longName="writer",
+        description=CommonParameters.WRITER
+    )
+    public String writer = CbzWriterEngine.CHANNEL.name().toLowerCase();
+
+    @Parameter(
+        name="t",
+        longName="threads",
+        description=CommonParameters.THREADS
+    )
+    public String threads = null;
+
+    @Parameter(
+        name="it",
+        longName="io-threads",
+        description=CommonParameters.IO_THREADS
+    )
+    public String ioThreads = null;
+
+    @Parameter(
+        name="vt",
+        longName="virtual-threads",
+        description=CommonParameters.VIRTUAL_THREADS
+    )
+    public Boolean virtualThreads = false;
+
+    @Parameter(
+        name="mb",
+        longName="memory-budget",
+        description=CommonParameters.MEMORY_BUDGET
+    )
+    public String memoryBudget = null;
+
     @Run
     public int run(Path cwd) throws Exception {
         commonChecks(disableProgressBar);
-        return new GenericFileListOperation(cwd, "Packing comics...").execute(
+        var options = new Options(threads, ioThreads, virtualThreads, memoryBudget, false).configure();
+        var writerEngine = CbzWriterEngine.parse(writer);
+        var manifest = ComicManifest.load();
+        var memoryCost = MemoryCost.of(
+            MemoryCost.JOB_OVERHEAD,
+            writerEngine == CbzWriterEngine.STREAM ? MemoryCost.STREAM_WRITER_PER_BYTE : 0
+        );
+        return new GenericFileListOperation(cwd, "Packing comics...", Throttle.io(), memoryCost, options).execute(
             File::isDirectory,
-            dir -> new CompressionService().compressComic(dir, garbageCollector, all ? null : DEFAULT_FILE_EXCLUSIONS),
-            new RepeatedNamesValidator()
+            dir -> new CompressionService(writerEngine, manifest).compressComic(dir, garbageCollector, all ? null : DEFAULT_FILE_EXCLUSIONS),
+            RepeatedNamesValidator::new
         );
     }
 }
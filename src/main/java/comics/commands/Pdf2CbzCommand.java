@@ -3,21 +3,27 @@ package comics.commands;
 import cli.annotations.Command;
 import cli.annotations.Parameter;
 import cli.annotations.Run;
+import comics.commands.GenericFileListOperation.MemoryCost;
+import comics.commands.GenericFileListOperation.Options;
+import comics.logic.ComicManifest;
 import comics.logic.CompressionService;
+import comics.logic.PdfOptions;
 import comics.logic.PdfService;
+import comics.logic.RepeatedImagePolicy;
+import comics.logic.compression.CbzWriterEngine;
+import comics.utils.Throttle;
 import lombok.Setter;
 
+import java.io.File;
 import java.nio.file.Path;
 
-import static comics.logic.CompressionService.DEFAULT_FILE_EXCLUSIONS;
 import static comics.utils.Utils.commonChecks;
+import static comics.utils.Utils.parsePositiveNumber;
 
 @Setter
 @Command(
     command="pdf2cbz",
-    description="Translates every pdf under CWD into a .cbz file",
-    // May need a considerable heap for PDF collections
-    jvmArgs="-Xmx35G"
+    description="Translates every pdf under CWD into a .cbz file"
 )
 public class Pdf2CbzCommand {
 
@@ -29,15 +35,131 @@ public class Pdf2CbzCommand {
     @Parameter(name="npb", longName="no-progress-bar", description="If set, the command will display no progress bar")
     public Boolean disableProgressBar = false;
 
+    @Parameter(
+        name="w",
+        longName="writer",
+        description=CommonParameters.WRITER
+    )
+    public String writer = CbzWriterEngine.CHANNEL.name().toLowerCase();
+
+    @Parameter(
+        name="npt",
+        longName="no-pass-through",
+        description="If set, every image is decoded and encoded again, even if it is already in the requested format"
+    )
+    public Boolean disablePassThrough = false;
+
+    @Parameter(
+        name="mm",
+        longName="max-memory",
+        description="Main memory, in MB, that each PDF may use before spilling into scratch files (default 64)"
+    )
+    public String maxMemory = "64";
+
+    @Parameter(
+        name="sd",
+        longName="scratch-dir",
+        description="Directory for the scratch files of the PDFs; the system temporary directory by default"
+    )
+    public String scratchDirectory = null;
+
+    @Parameter(
+        name="ri",
+        longName="repeated-images",
+        description="Images referenced more than once in a pdf: 'duplicate' (default, every reference is written), 'once' or 'skip'"
+    )
+    public String repeatedImages = RepeatedImagePolicy.DUPLICATE.name().toLowerCase();
+
+    @Parameter(
+        name="r",
+        longName="render",
+        description="If set, every page is rendered; otherwise only pages without images are"
+    )
+    public Boolean render = false;
+
+    @Parameter(name="dpi", longName="dpi", description="Resolution of the rendered pages (default 150)")
+    public String dpi = "150";
+
+    @Parameter(
+        name="rm",
+        longName="render-memory",
+        description="Memory, in MB, that the pages being rendered at the same time may take (default 512)"
+    )
+    public String renderMemory = "512";
+
+    @Parameter(
+        name="q",
+        longName="quality",
+        description="Quality of the encoded images, from 1 to 100, for formats that allow it (default: the format's own)"
+    )
+    public String quality = null;
+
+    @Parameter(
+        name="p",
+        longName="progressive",
+        description="If set, images are written progressive (interlaced) where the format allows it; baseline otherwise"
+    )
+    public Boolean progressive = false;
+
+    @Parameter(
+        name="rc",
+        longName="recursive",
+        description=CommonParameters.RECURSIVE
+    )
+    public Boolean recursive = false;
+
+    @Parameter(
+        name="t",
+        longName="threads",
+        description=CommonParameters.THREADS
+    )
+    public String threads = null;
+
+    @Parameter(
+        name="it",
+        longName="io-threads",
+        description=CommonParameters.IO_THREADS
+    )
+    public String ioThreads = null;
+
+    @Parameter(
+        name="mb",
+        longName="memory-budget",
+        description=CommonParameters.MEMORY_BUDGET
+    )
+    public String memoryBudget = null;
+
+    private static float parseQuality(String quality) {
+        var percentage = parsePositiveNumber(quality, "quality");
+        if (percentage > 100)
+            throw new IllegalArgumentException(String.format("Please specify a quality from 1 to 100 (found '%s')", quality));
+        return percentage / 100f;
+    }
+
     @Run
     public int run(Path cwd) throws Exception {
         commonChecks(disableProgressBar);
-        return new GenericFileListOperation(cwd, "Converting pdf files...").execute(
+        var runOptions = new Options(threads, ioThreads, false, memoryBudget, recursive).configure();
+        var writerEngine = CbzWriterEngine.parse(writer);
+        var manifest = ComicManifest.load();
+        var options = PdfOptions.builder()
+            .passThrough(!disablePassThrough)
+            .maxMainMemoryBytes(parsePositiveNumber(maxMemory, "max-memory") * 1024 * 1024)
+            .scratchDirectory(scratchDirectory == null ? null : new File(scratchDirectory))
+            .repeatedImages(RepeatedImagePolicy.parse(repeatedImages))
+            .renderAllPages(render)
+            .renderDpi(parsePositiveNumber(dpi, "dpi"))
+            .renderMemoryBytes(parsePositiveNumber(renderMemory, "render-memory") * 1024 * 1024)
+            .quality(quality == null ? null : parseQuality(quality))
+            .progressive(progressive)
+            .encoderThreads(Throttle.threadsPerCpuJob())
+            .build();
+        // PDFBox keeps up to --max-memory of every pdf, plus the pages being rendered; the decoded images in flight
+        //  grow with the size of the pdf
+        var memoryCost = MemoryCost.of(options.getMaxMainMemoryBytes() + options.getRenderMemoryBytes(), 2);
+        return new GenericFileListOperation(cwd, "Converting pdf files...", Throttle.cpu(), memoryCost, runOptions).execute(
             f -> !f.isDirectory() && (f.getName().toLowerCase().endsWith("pdf")),
-            f -> {
-                var directory = new PdfService().convertPDF(f, format);
-                new CompressionService().compressComic(directory, false, DEFAULT_FILE_EXCLUSIONS);
-            }
+            f -> new CompressionService(writerEngine, manifest).convertPdf(f, new PdfService(options), format)
         );
     }
 }
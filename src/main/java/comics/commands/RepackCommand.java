@@ -1,17 +1,27 @@
 package comics.commands;
 
+import cli.LogUtils;
 import cli.annotations.Command;
 import cli.annotations.Parameter;
 import cli.annotations.Run;
+import comics.commands.GenericFileListOperation.MemoryCost;
+import comics.commands.GenericFileListOperation.Options;
+import comics.logic.ComicManifest;
 import comics.logic.CompressionService;
+import comics.logic.RepackJob;
 import comics.logic.RepeatedNamesValidator;
+import comics.logic.compression.CbzWriterEngine;
+import comics.logic.compression.ZipTransplant;
+import comics.utils.Journal;
+import comics.utils.Pipeline;
+import comics.utils.Throttle;
 import lombok.Setter;
 
-import java.io.File;
 import java.nio.file.Path;
 
 import static comics.logic.CompressionService.DEFAULT_FILE_EXCLUSIONS;
 import static comics.utils.Utils.commonChecks;
+import static comics.utils.Utils.parsePositiveNumber;
 
 @Setter
 @Command(command = "repack", description = "Unpacks every cbz/cbr file under CWD and repacks them into .cbz files")
@@ -30,21 +40,121 @@ public class RepackCommand {
     )
     public Boolean garbageCollector = false;
 
+    @Parameter(
+        name="w",
+        longName="writer",
+        description=CommonParameters.WRITER
+    )
+    public String writer = CbzWriterEngine.CHANNEL.name().toLowerCase();
+
+    @Parameter(
+        name="s",
+        longName="streaming",
+        description="If set, the entries are copied straight into the new comic without extracting them into a directory"
+    )
+    public Boolean streaming = false;
+
+    @Parameter(
+        name="f",
+        longName="force",
+        description="If set, comics recorded in the manifest as already repacked are processed again"
+    )
+    public Boolean force = false;
+
+    @Parameter(
+        name="rs",
+        longName="resume",
+        description="If set, comics finished by the last run on this directory are skipped, and those left half done are cleaned up or finished"
+    )
+    public Boolean resume = false;
+
+    @Parameter(
+        name="rc",
+        longName="recursive",
+        description=CommonParameters.RECURSIVE
+    )
+    public Boolean recursive = false;
+
+    @Parameter(
+        name="v",
+        longName="verify",
+        description=CommonParameters.VERIFY
+    )
+    public Boolean verify = false;
+
+    @Parameter(
+        name="t",
+        longName="threads",
+        description=CommonParameters.THREADS
+    )
+    public String threads = null;
+
+    @Parameter(
+        name="it",
+        longName="io-threads",
+        description=CommonParameters.IO_THREADS
+    )
+    public String ioThreads = null;
+
+    @Parameter(
+        name="vt",
+        longName="virtual-threads",
+        description=CommonParameters.VIRTUAL_THREADS
+    )
+    public Boolean virtualThreads = false;
+
+    @Parameter(
+        name="mb",
+        longName="memory-budget",
+        description=CommonParameters.MEMORY_BUDGET
+    )
+    public String memoryBudget = null;
+
+    @Parameter(
+        name="et",
+        longName="extraction-threads",
+        description=CommonParameters.EXTRACTION_THREADS
+    )
+    public String extractionThreads = null;
+
     @Run
     public int run(Path cwd) throws Exception {
         commonChecks(disableProgressBar);
-        return new GenericFileListOperation(cwd, "Repacking comics...").execute(
-            f -> !f.isDirectory() && (f.getName().toLowerCase().endsWith("cbz") || f.getName().toLowerCase().endsWith("cbr")),
-            f -> {
-                var expectedDirectory = new File(
-                    cwd.toFile(),
-                    f.getName().substring(0, f.getName().lastIndexOf('.'))
-                );
-                var compressionService = new CompressionService();
-                compressionService.decompressComic(f);
-                compressionService.compressComic(expectedDirectory, garbageCollector, all ? null : DEFAULT_FILE_EXCLUSIONS);
-            },
-            new RepeatedNamesValidator()
+        var options = new Options(threads, ioThreads, virtualThreads, memoryBudget, recursive).configure();
+        var threadsPerComic = extractionThreads == null ? 1 : (int) parsePositiveNumber(extractionThreads, "extraction-threads");
+        var writerEngine = CbzWriterEngine.parse(writer);
+        var manifest = ComicManifest.load();
+        var memoryCost = MemoryCost.of(
+            MemoryCost.JOB_OVERHEAD,
+            writerEngine == CbzWriterEngine.STREAM ? MemoryCost.STREAM_WRITER_PER_BYTE : 0
         );
+        var processors = Runtime.getRuntime().availableProcessors();
+        try (
+            var journal = Journal.open("repack", cwd, resume);
+            var pipeline = new Pipeline<RepackJob>()
+                .stage("extract", Throttle.io().getMaxPermits(), RepackJob::extract)
+                // Just walking the directory
+                .stage("analyze", processors, RepackJob::analyze)
+                .stage("write", Throttle.cpu().getMaxPermits(), RepackJob::write)
+                .stage("backup", processors, RepackJob::backup)
+        ) {
+            var ret = new GenericFileListOperation(cwd, "Repacking comics...", Throttle.io(), memoryCost, options, journal).execute(
+                f -> !f.isDirectory() && (f.getName().toLowerCase().endsWith("cbz") || f.getName().toLowerCase().endsWith("cbr")),
+                // Zip files always take the fast path: their STORED entries are copied as they are.  Comics that the
+                //  compression tool cannot stream go through every stage, for their directory to be journaled
+                f -> pipeline.process(new RepackJob(
+                    f,
+                    new CompressionService(writerEngine, manifest, verify, threadsPerComic),
+                    journal,
+                    (streaming || ZipTransplant.isZip(f)) && CompressionService.canRepackDirectly(f),
+                    garbageCollector,
+                    all ? null : DEFAULT_FILE_EXCLUSIONS
+                )),
+                RepeatedNamesValidator::new,
+                force ? null : manifest::isProcessed
+            );
+            LogUtils.getDefaultLogger().info(String.format("Repack stages:%n%s", pipeline.report()));
+            return ret;
+        }
     }
 }
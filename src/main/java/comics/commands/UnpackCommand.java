@@ -3,12 +3,17 @@ package comics.commands;
 import cli.annotations.Command;
 import cli.annotations.Parameter;
 import cli.annotations.Run;
+import comics.commands.GenericFileListOperation.MemoryCost;
+import comics.commands.GenericFileListOperation.Options;
 import comics.logic.CompressionService;
+import comics.logic.compression.CbzWriterEngine;
+import comics.utils.Throttle;
 import lombok.Setter;
 
 import java.nio.file.Path;
 
 import static comics.utils.Utils.commonChecks;
+import static comics.utils.Utils.parsePositiveNumber;
 
 @Setter
 @Command(command="unpack", description="Unpacks every cbz/cbr file under CWD")
@@ -17,12 +22,64 @@ public class UnpackCommand {
     @Parameter(name="npb", longName="no-progress-bar", description="If set, the command will display no progress bar")
     public Boolean disableProgressBar = false;
 
+    @Parameter(
+        name="rc",
+        longName="recursive",
+        description=CommonParameters.RECURSIVE
+    )
+    public Boolean recursive = false;
+
+    @Parameter(
+        name="v",
+        longName="verify",
+        description=CommonParameters.VERIFY
+    )
+    public Boolean verify = false;
+
+    @Parameter(
+        name="t",
+        longName="threads",
+        description=CommonParameters.THREADS
+    )
+    public String threads = null;
+
+    @Parameter(
+        name="it",
+        longName="io-threads",
+        description=CommonParameters.IO_THREADS
+    )
+    public String ioThreads = null;
+
+    @Parameter(
+        name="vt",
+        longName="virtual-threads",
+        description=CommonParameters.VIRTUAL_THREADS
+    )
+    public Boolean virtualThreads = false;
+
+    @Parameter(
+        name="mb",
+        longName="memory-budget",
+        description=CommonParameters.MEMORY_BUDGET
+    )
+    public String memoryBudget = null;
+
+    @Parameter(
+        name="et",
+        longName="extraction-threads",
+        description=CommonParameters.EXTRACTION_THREADS
+    )
+    public String extractionThreads = null;
+
     @Run
     public int run(Path cwd) throws Exception {
         commonChecks(disableProgressBar);
-        return new GenericFileListOperation(cwd, "Unpacking comics...").execute(
+        var options = new Options(threads, ioThreads, virtualThreads, memoryBudget, recursive).configure();
+        var threadsPerComic = extractionThreads == null ? 1 : (int) parsePositiveNumber(extractionThreads, "extraction-threads");
+        var memoryCost = MemoryCost.of(MemoryCost.JOB_OVERHEAD, 0);
+        return new GenericFileListOperation(cwd, "Unpacking comics...", Throttle.io(), memoryCost, options).execute(
             f -> !f.isDirectory() && (f.getName().toLowerCase().endsWith("cbz") || f.getName().toLowerCase().endsWith("cbr")),
-            comic -> new CompressionService().decompressComic(comic)
+            comic -> new CompressionService(CbzWriterEngine.CHANNEL, null, verify, threadsPerComic).decompressComic(comic)
         );
     }
 }
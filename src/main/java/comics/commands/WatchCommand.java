@@ -0,0 +1,130 @@
+package comics.commands;
+
+import cli.annotations.Command;
+import cli.annotations.Parameter;
+import cli.annotations.Run;
+import comics.commands.GenericFileListOperation.MemoryCost;
+import comics.commands.GenericFileListOperation.Options;
+import comics.logic.ComicManifest;
+import comics.logic.CompressionService;
+import comics.logic.PdfOptions;
+import comics.logic.PdfService;
+import comics.logic.compression.CbzWriterEngine;
+import comics.utils.Throttle;
+import lombok.Setter;
+
+import java.io.File;
+import java.nio.file.Path;
+
+import static comics.logic.CompressionService.DEFAULT_FILE_EXCLUSIONS;
+import static comics.utils.Utils.commonChecks;
+import static comics.utils.Utils.parsePositiveNumber;
+
+@Setter
+@Command(
+    command="watch",
+    description="Stays running and repacks every cbz/cbr file, or translates every pdf, that is dropped into CWD"
+)
+public class WatchCommand {
+
+    @Parameter(name="a", longName="all", description="If set, the command will include non-image files in the comics")
+    public Boolean all = false;
+
+    @Parameter(
+        name="gc",
+        longName="garbage-collector",
+        description="If set, it will attempt to remove images that do not belong to the comic"
+    )
+    public Boolean garbageCollector = false;
+
+    @Parameter(
+        name="w",
+        longName="writer",
+        description=CommonParameters.WRITER
+    )
+    public String writer = CbzWriterEngine.CHANNEL.name().toLowerCase();
+
+    @Parameter(name = "f", longName = "format", description = "Image format to be used during pdf conversion")
+    public String format = Pdf2CbzCommand.DEFAULT_FORMAT;
+
+    @Parameter(
+        name="qp",
+        longName="quiet-period",
+        description="Milliseconds that a new file must stay untouched before it is processed (default 2000)"
+    )
+    public String quietPeriod = "2000";
+
+    @Parameter(
+        name="t",
+        longName="threads",
+        description=CommonParameters.THREADS
+    )
+    public String threads = null;
+
+    @Parameter(
+        name="it",
+        longName="io-threads",
+        description=CommonParameters.IO_THREADS
+    )
+    public String ioThreads = null;
+
+    @Parameter(
+        name="vt",
+        longName="virtual-threads",
+        description=CommonParameters.VIRTUAL_THREADS
+    )
+    public Boolean virtualThreads = false;
+
+    @Parameter(
+        name="mb",
+        longName="memory-budget",
+        description=CommonParameters.MEMORY_BUDGET
+    )
+    public String memoryBudget = null;
+
+    private static boolean isPdf(File f) {
+        return f.getName().toLowerCase().endsWith("pdf");
+    }
+
+    private static boolean isComic(File f) {
+        return f.getName().toLowerCase().endsWith("cbz") || f.getName().toLowerCase().endsWith("cbr");
+    }
+
+    @Run
+    public int run(Path cwd) throws Exception {
+        // Nothing to show progress of
+        commonChecks(true);
+        new Options(threads, ioThreads, virtualThreads, memoryBudget, false).configure();
+        var quietMillis = parsePositiveNumber(quietPeriod, "quiet-period");
+        var writerEngine = CbzWriterEngine.parse(writer);
+        var manifest = ComicManifest.load();
+        var options = PdfOptions.builder().encoderThreads(Throttle.threadsPerCpuJob()).build();
+        var pdfCost = MemoryCost.of(options.getMaxMainMemoryBytes() + options.getRenderMemoryBytes(), 2);
+        var comicCost = MemoryCost.of(
+            MemoryCost.JOB_OVERHEAD,
+            writerEngine == CbzWriterEngine.STREAM ? MemoryCost.STREAM_WRITER_PER_BYTE : 0
+        );
+        try {
+            new FolderWatcher(
+                cwd,
+                (long) quietMillis,
+                // The same throttles as pdf2cbz and repack
+                f -> isPdf(f) ? Throttle.cpu() : Throttle.io(),
+                f -> isPdf(f) ? pdfCost : comicCost
+            ).watch(
+                f -> isPdf(f) || isComic(f),
+                f -> {
+                    var service = new CompressionService(writerEngine, manifest);
+                    if (isPdf(f)) service.convertPdf(f, new PdfService(options), format);
+                    else service.repackComic(f, garbageCollector, all ? null : DEFAULT_FILE_EXCLUSIONS);
+                },
+                // Among them, the comics written by the watch itself
+                manifest::isProcessed
+            );
+        } catch (Throwable e) {
+            System.err.println(e.getMessage());
+            return -1;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,73 @@
+package comics.logic;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import static comics.logic.CompressionService.DEFAULT_GARBAGE_PATTERNS;
+
+// Rules deciding what makes it into a comic (exclusions, garbage and trivial nesting), applied to relative paths
+//  with '/' as separator: the entries of an archive, or the files of a ComicLayout
+class ComicEntrySelector {
+
+    private static final List<Pattern> GARBAGE_PATTERNS =
+        Arrays.stream(DEFAULT_GARBAGE_PATTERNS).map(Pattern::compile).toList();
+
+    private final boolean garbageCollector;
+    private final String[] exclusions;
+
+    ComicEntrySelector(Boolean garbageCollector, String... exclusions) {
+        this.garbageCollector = garbageCollector;
+        this.exclusions = exclusions;
+    }
+
+    /**
+     * Decides which entries make it into the final comic and under which name
+     * @param paths Relative paths of every file, in the order they should be written
+     * @return Selected paths mapped to their name in the final comic, keeping the original order
+     */
+    Map<String, String> select(List<String> paths) {
+        var valid = paths.stream().filter(path -> !isExcluded(path) && !isGarbage(path)).toList();
+        // Detect trivial nesting case:
+        // Single directory with every image hanging from there
+        Set<String> parents = new HashSet<>();
+        for (var path: valid) parents.add(parentOf(path));
+        var root = parents.size() == 1 ? parents.iterator().next() : "";
+
+        var ret = new LinkedHashMap<String, String>();
+        for (var path: valid) ret.put(path, root.isEmpty() ? path : path.substring(root.length() + 1));
+        return ret;
+    }
+
+    boolean isExcluded(String path) {
+        var excluded = false;
+        if (exclusions != null)
+            for (var s: exclusions) {
+                excluded |= fileName(path).toLowerCase().endsWith("." + s.toLowerCase());
+            }
+        return excluded;
+    }
+
+    boolean isGarbage(String path) {
+        var isGarbage = false;
+        if (garbageCollector && !isExcluded(path)) {
+            for (var pattern: GARBAGE_PATTERNS) {
+                isGarbage |= pattern.matcher(fileName(path).toLowerCase()).matches();
+            }
+        }
+        return isGarbage;
+    }
+
+    private static String fileName(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    private static String parentOf(String path) {
+        var index = path.lastIndexOf('/');
+        return index < 0 ? "" : path.substring(0, index);
+    }
+}
@@ -0,0 +1,75 @@
+package comics.logic;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Every file under a comic directory, with its attributes, read in a single walk: garbage collection, trivial
+//  nesting and the writer itself work on this instead of asking the file system again
+class ComicLayout {
+
+    // Relative paths, with '/' as separator, in the order the comic is written
+    private final List<String> paths;
+    private final Map<String, Path> files;
+    private final Map<String, BasicFileAttributes> attributes;
+
+    private ComicLayout(List<String> paths, Map<String, Path> files, Map<String, BasicFileAttributes> attributes) {
+        this.paths = paths;
+        this.files = files;
+        this.attributes = attributes;
+    }
+
+    /**
+     * @param directory Existing, non-symlink directory
+     * @return Every file under the directory; symlinks to files count as the files they point to
+     * @throws IOException If any part of the directory cannot be read
+     */
+    static ComicLayout scan(File directory) throws IOException {
+        var root = directory.toPath();
+        var found = new HashMap<Path, BasicFileAttributes>();
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (attrs.isSymbolicLink()) {
+                    if (!Files.isDirectory(file)) found.put(file, Files.readAttributes(file, BasicFileAttributes.class));
+                } else if (!attrs.isDirectory()) found.put(file, attrs);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        // Listing order depends on the file system; sorting keeps the comics reproducible
+        var sorted = found.keySet().stream().sorted().toList();
+        var paths = new ArrayList<String>(sorted.size());
+        var files = new HashMap<String, Path>();
+        var attributes = new HashMap<String, BasicFileAttributes>();
+        for (var file: sorted) {
+            var path = root.relativize(file).toString().replace(File.separatorChar, '/');
+            paths.add(path);
+            files.put(path, file);
+            attributes.put(path, found.get(file));
+        }
+        return new ComicLayout(paths, files, attributes);
+    }
+
+    /**
+     * @return Relative paths of every file, with '/' as separator, sorted
+     */
+    List<String> paths() {
+        return paths;
+    }
+
+    Path file(String path) {
+        return files.get(path);
+    }
+
+    BasicFileAttributes attributes(String path) {
+        return attributes.get(path);
+    }
+}
@@ -0,0 +1,145 @@
+package comics.logic;
+
+import cli.LogUtils;
+import comics.logic.compression.ZipFingerprint;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.util.logging.Level.FINE;
+
+// Append-only record, inside $HOME/.comicutils, of every comic produced by CompressionService, so that later
+//  runs can skip the ones that are already in their final form
+public class ComicManifest {
+
+    private static final Logger logger = LogUtils.getDefaultLogger();
+    private static final String DIRECTORY_NAME = ".comicutils";
+    private static final String FILE_NAME = "manifest";
+    private static final Object LOCK = new Object();
+    // One instance per manifest file, shared by every service in the JVM
+    private static final Map<File, ComicManifest> MANIFESTS = new HashMap<>();
+
+    private record Fingerprint(long size, long lastModified, String hash) { }
+
+    private final File manifestFile;
+    private final Map<String, Fingerprint> byPath = new HashMap<>();
+    private final Map<Long, Set<String>> hashesBySize = new HashMap<>();
+
+    private ComicManifest(File manifestFile) throws IOException {
+        this.manifestFile = manifestFile;
+        if (manifestFile.exists()) {
+            // Lines: hash, size, modification time and path, separated by tabs; later lines win
+            for (var line: Files.readAllLines(manifestFile.toPath(), UTF_8)) {
+                var fields = line.split("\t", 4);
+                if (fields.length < 4) continue;
+                try {
+                    index(fields[3], new Fingerprint(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[0]));
+                } catch (NumberFormatException nfe) {
+                    logger.log(FINE, String.format("Ignoring corrupt manifest line '%s'", line));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The manifest of the current user, loading it if necessary
+     * @throws IOException If the manifest cannot be read
+     */
+    public static ComicManifest load() throws IOException {
+        var directory = new File(System.getProperty("user.home"), DIRECTORY_NAME);
+        if (directory.exists() && !directory.isDirectory()) {
+            throw new IOException(String.format("Cannot proceed; %s exists and is not a directory!!!%n", directory.getAbsolutePath()));
+        }
+        var manifestFile = new File(directory, FILE_NAME);
+        synchronized (LOCK) {
+            var manifest = MANIFESTS.get(manifestFile);
+            if (manifest == null) {
+                manifest = new ComicManifest(manifestFile);
+                MANIFESTS.put(manifestFile, manifest);
+            }
+            return manifest;
+        }
+    }
+
+    /**
+     * Records a comic just produced
+     * @param comic Existing .cbz file
+     * @throws IOException If the comic cannot be read or the manifest cannot be written
+     */
+    public void record(File comic) throws IOException {
+        var attributes = Files.readAttributes(comic.toPath(), BasicFileAttributes.class);
+        append(comic, new Fingerprint(
+            attributes.size(),
+            attributes.lastModifiedTime().toMillis(),
+            ZipFingerprint.of(comic)
+        ));
+    }
+
+    /**
+     * Checks if a comic is already in its final form: normalized name and contents identical to a comic produced
+     * earlier.  The hash is only computed if size and modification time do not match the ones recorded for its path
+     * @param comic Existing file
+     * @return True if the comic does not need to be processed again
+     */
+    public boolean isProcessed(File comic) {
+        if (!comic.getName().toLowerCase().endsWith(".cbz")
+                || !new NameConverter().normalizeFileName(comic.getName()).equals(comic.getName())) return false;
+        try {
+            var attributes = Files.readAttributes(comic.toPath(), BasicFileAttributes.class);
+            var size = attributes.size();
+            var lastModified = attributes.lastModifiedTime().toMillis();
+            Fingerprint recorded;
+            boolean sizeKnown;
+            synchronized (this) {
+                recorded = byPath.get(comic.getAbsolutePath());
+                sizeKnown = hashesBySize.containsKey(size);
+            }
+            if (recorded != null && recorded.size() == size && recorded.lastModified() == lastModified) return true;
+            if (!sizeKnown) return false;
+            // Copied or touched since it was recorded: compare the contents
+            var hash = ZipFingerprint.of(comic);
+            synchronized (this) {
+                if (!hashesBySize.get(size).contains(hash)) return false;
+            }
+            append(comic, new Fingerprint(size, lastModified, hash));
+            return true;
+        } catch (IOException e) {
+            logger.log(FINE, String.format("Could not fingerprint %s: %s", comic, e.getMessage()));
+            return false;
+        }
+    }
+
+    private synchronized void append(File comic, Fingerprint fingerprint) throws IOException {
+        var directory = manifestFile.getParentFile();
+        if (directory.mkdirs()) logger.log(FINE, String.format("Created directory %s", directory));
+        Files.writeString(
+            manifestFile.toPath(),
+            String.format(
+                "%s\t%d\t%d\t%s%n",
+                fingerprint.hash(),
+                fingerprint.size(),
+                fingerprint.lastModified(),
+                comic.getAbsolutePath()
+            ),
+            UTF_8,
+            CREATE,
+            APPEND
+        );
+        index(comic.getAbsolutePath(), fingerprint);
+    }
+
+    private void index(String path, Fingerprint fingerprint) {
+        byPath.put(path, fingerprint);
+        hashesBySize.computeIfAbsent(fingerprint.size(), key -> new HashSet<>()).add(fingerprint.hash());
+    }
+}
@@ -1,24 +1,21 @@
 package comics.logic;
 
 import cli.LogUtils;
+import comics.logic.compression.ArchiveEntry;
+import comics.logic.compression.CbzWriter;
+import comics.logic.compression.CbzWriterEngine;
+import comics.logic.compression.CbzWriterFactory;
 import comics.logic.compression.CompressionToolFactory;
+import comics.logic.compression.StreamingCompressionTool;
+import comics.logic.compression.ZipTransplant;
 import comics.utils.BackupService;
 import comics.utils.Utils;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.regex.Pattern;
-import java.util.zip.CRC32;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
-
-import static java.util.zip.Deflater.NO_COMPRESSION;
-import static java.util.zip.ZipOutputStream.STORED;
+import java.util.Map;
 
 public class CompressionService {
 
@@ -31,36 +28,259 @@ public class CompressionService {
         ".+flyer.+"
     };
 
-    public CompressionService() { }
+    private final CbzWriterEngine writerEngine;
+    private final ComicManifest manifest;
+    private final boolean verifyExtraction;
+    private final int extractionThreads;
+
+    public CompressionService() {
+        this(CbzWriterEngine.CHANNEL);
+    }
+
+    /**
+     * @param writerEngine Implementation used to write the .cbz files
+     */
+    public CompressionService(CbzWriterEngine writerEngine) {
+        this(writerEngine, null);
+    }
+
+    /**
+     * @param writerEngine Implementation used to write the .cbz files
+     * @param manifest If not null, every comic produced is recorded there
+     */
+    public CompressionService(CbzWriterEngine writerEngine, ComicManifest manifest) {
+        this(writerEngine, manifest, false);
+    }
+
+    /**
+     * @param writerEngine Implementation used to write the .cbz files
+     * @param manifest If not null, every comic produced is recorded there
+     * @param verifyExtraction If set, the crc-32 of every file extracted, or copied straight into a new comic by
+     *  repackComic, is checked against the one in the comic
+     */
+    public CompressionService(CbzWriterEngine writerEngine, ComicManifest manifest, boolean verifyExtraction) {
+        this(writerEngine, manifest, verifyExtraction, 1);
+    }
+
+    /**
+     * @param extractionThreads Threads extracting the entries of a single comic at once, for zip files and
+     *  non-solid archives
+     */
+    public CompressionService(
+        CbzWriterEngine writerEngine,
+        ComicManifest manifest,
+        boolean verifyExtraction,
+        int extractionThreads
+    ) {
+        assert extractionThreads > 0 : "Please specify a positive number of extraction threads";
+        this.writerEngine = writerEngine;
+        this.manifest = manifest;
+        this.verifyExtraction = verifyExtraction;
+        this.extractionThreads = extractionThreads;
+    }
   
     /**
      * Runs 7z to extract the comic file contents into a directory with the same name
      * @param comicFile Not null, existing, non-directory, non-symlink, 7z-compatible compressed file into a directory
      *                  with the same name, without extension, that must not exist
-     * @throws CompressionException If any of the aforementioned conditions is not met
+     * @throws CompressionException If any of the aforementioned conditions is not met, or any file of the comic
+     *                              cannot be extracted; the comic is only backed up after a clean extraction
      */
     public void decompressComic(File comicFile) throws CompressionException {
+        try {
+            extractComic(comicFile);
+            // If successful, backup the file
+            new BackupService().backupFile(comicFile);
+        } catch (IOException | AssertionError e) {
+            throw new CompressionException(e);
+        }
+    }
+
+    // Extracts the comic into a directory with the same name, leaving the comic where it is
+    File extractComic(File comicFile) throws IOException {
+        assert comicFile != null : "Please specify a non-null file";
+        assert comicFile.exists() : "Please specify an existing file";
+        assert !comicFile.isDirectory() : String.format("Cannot decompress %s - it is a directory", comicFile);
+        assert !Files.isSymbolicLink(comicFile.toPath()) : String.format("Cannot decompress %s - it is a symlink", comicFile);
+
+        var targetDirectory = extractionDirectory(comicFile);
+        assert !targetDirectory.exists() : String.format("Cannot decompress %s - there is something in the way", comicFile);;
+
+        try {
+            CompressionToolFactory.getCompressionTool(comicFile).extractFile(comicFile, targetDirectory, verifyExtraction, extractionThreads);
+        } catch (IOException e) {
+            // Nothing half extracted left in the way of the next attempt; the comic stays where it is
+            if (targetDirectory.isDirectory()) Utils.removeDirectory(targetDirectory);
+            throw e;
+        }
+        return targetDirectory;
+    }
+
+    // Same name as the comic, without extension
+    static File extractionDirectory(File comicFile) {
+        return new File(comicFile.getParentFile(), comicFile.getName().substring(0, comicFile.getName().lastIndexOf('.')));
+    }
+
+    // Normalized .cbz next to the comic
+    static File repackTarget(File comicFile) {
+        var baseName = comicFile.getName().substring(0, comicFile.getName().lastIndexOf('.'));
+        return new File(comicFile.getParentFile(), new NameConverter().normalizeFileName(baseName + ".cbz"));
+    }
+
+    // Where a comic is written before being put in place
+    static File partialFileOf(File targetFile) {
+        return new File(targetFile.getParentFile(), targetFile.getName() + ".part");
+    }
+
+    /**
+     * @param comicFile Comic about to be repacked
+     * @return True if repackComic writes the new comic straight from the archive, without extracting it into a
+     *  directory first: the comic is a zip file, or the compression tool can stream its entries
+     */
+    public static boolean canRepackDirectly(File comicFile) {
+        return ZipTransplant.isZip(comicFile) ||
+            CompressionToolFactory.getCompressionTool(comicFile) instanceof StreamingCompressionTool;
+    }
+
+    @FunctionalInterface
+    private interface EntryCopier {
+        void copy(Map<String, String> selection, CbzWriter writer) throws IOException;
+    }
+
+    /**
+     * Repacks a comic into a normalized .cbz file without extracting it into a directory: the entries are read
+     * from the original archive and written straight into the new one.  STORED entries of zip files are copied
+     * as they are, without even inflating them.  Falls back to decompressComic and compressComic if the comic
+     * is not a zip file and the available compression tool cannot stream its entries.
+     * @param comicFile Not null, existing, non-directory, non-symlink, 7z-compatible compressed file
+     * @param garbageCollector If set, entries that do not seem to belong to the comic are dropped
+     * @param extensionsExcluded Extensions of files forbidden in the final comic
+     * @throws CompressionException If any pre-condition is not met or there is any failure in the I/O operation
+     */
+    public void repackComic(
+        File comicFile,
+        Boolean garbageCollector,
+        String... extensionsExcluded
+    ) throws CompressionException {
         try {
             assert comicFile != null : "Please specify a non-null file";
             assert comicFile.exists() : "Please specify an existing file";
-            assert !comicFile.isDirectory() : String.format("Cannot decompress %s - it is a directory", comicFile);
-            assert !Files.isSymbolicLink(comicFile.toPath()) : String.format("Cannot decompress %s - it is a symlink", comicFile);
+            assert !comicFile.isDirectory() : String.format("Cannot repack %s - it is a directory", comicFile);
+            assert !Files.isSymbolicLink(comicFile.toPath()) : String.format("Cannot repack %s - it is a symlink", comicFile);
+
+            if (!canRepackDirectly(comicFile)) {
+                decompressComic(comicFile);
+                compressComic(extractionDirectory(comicFile), garbageCollector, extensionsExcluded);
+                return;
+            }
 
-            var targetDirectory = new File(
-                comicFile.getParentFile(),
-                // Remove extension
-                comicFile.getName().substring(0, comicFile.getName().lastIndexOf('.'))
+            var targetFile = repackTarget(comicFile);
+            // The target may well be the original comic, if its name was already normalized
+            assert !targetFile.exists() || targetFile.equals(comicFile) :
+                String.format("Cannot repack %s - there is something in the way", comicFile);
+            var partialFile = partialFileOf(targetFile);
+            writeDirectly(comicFile, partialFile, garbageCollector, extensionsExcluded);
+            // If successful, backup the file and put the new one in its place
+            putInPlace(comicFile, partialFile, targetFile);
+        } catch (IOException | AssertionError e) {
+            throw new CompressionException(e);
+        }
+    }
+
+    // Writes a comic that canRepackDirectly into a partial file, straight from the archive, to be put in place
+    //  by putInPlace
+    void writeDirectly(
+        File comicFile,
+        File partialFile,
+        Boolean garbageCollector,
+        String... extensionsExcluded
+    ) throws IOException {
+        assert !partialFile.exists() : String.format("Cannot repack %s - there is something in the way", comicFile);
+        var selector = new ComicEntrySelector(garbageCollector, extensionsExcluded);
+        if (ZipTransplant.isZip(comicFile)) {
+            try (var transplant = new ZipTransplant(comicFile, verifyExtraction)) {
+                writeComic(partialFile, selector, transplant.listEntries(), transplant::copyEntries);
+            }
+        } else {
+            var streaming = (StreamingCompressionTool) CompressionToolFactory.getCompressionTool(comicFile);
+            writeComic(
+                partialFile,
+                selector,
+                streaming.listEntries(comicFile),
+                (selection, writer) -> streaming.streamEntries(
+                    comicFile,
+                    selection.keySet(),
+                    verifyExtraction,
+                    entry -> writer.newEntry(selection.get(entry.path()), entry.lastModified())
+                )
             );
-            assert !targetDirectory.exists() : String.format("Cannot decompress %s - there is something in the way", comicFile);;
+        }
+    }
 
-            CompressionToolFactory.getCompressionTool().extractFile(comicFile, targetDirectory);
-            // If successful, backup the file
-            new BackupService().backupFile(comicFile);
+    // Backs up the original comic and puts the new one in its place
+    void putInPlace(File comicFile, File partialFile, File targetFile) throws IOException {
+        new BackupService().backupFile(comicFile);
+        Files.move(partialFile.toPath(), targetFile.toPath());
+        recordInManifest(targetFile);
+    }
+
+    /**
+     * Converts a pdf into a normalized .cbz file, writing its images straight into the comic without any
+     * intermediate directory
+     * @param pdf Not null, existing, non-directory, non-symlink pdf file
+     * @param pdfService Service extracting the images
+     * @param format Desired image format, as admitted by ImageIO
+     * @throws CompressionException If any pre-condition is not met or there is any failure in the I/O operation
+     */
+    public void convertPdf(File pdf, PdfService pdfService, String format) throws CompressionException {
+        try {
+            assert pdf != null : "Please specify a non-null file";
+            assert pdf.exists() : "Please specify an existing file";
+            assert !pdf.isDirectory() : String.format("Cannot convert %s - it is a directory", pdf);
+            assert !Files.isSymbolicLink(pdf.toPath()) : String.format("Cannot convert %s - it is a symlink", pdf);
+
+            var baseName = pdf.getName().substring(0, pdf.getName().lastIndexOf('.'));
+            var targetFile = new File(pdf.getParentFile(), new NameConverter().normalizeFileName(baseName + ".cbz"));
+            assert !targetFile.exists() : String.format("Cannot convert %s - there is something in the way", pdf);
+            var partialFile = partialFileOf(targetFile);
+            assert !partialFile.exists() : String.format("Cannot convert %s - there is something in the way", pdf);
+
+            writeComic(partialFile, writer -> pdfService.writeComic(pdf, format, writer));
+            // If successful, backup the file and put the comic in its place
+            new BackupService().backupFile(pdf);
+            Files.move(partialFile.toPath(), targetFile.toPath());
+            recordInManifest(targetFile);
         } catch (IOException | AssertionError e) {
             throw new CompressionException(e);
         }
     }
 
+    @FunctionalInterface
+    private interface ComicContents {
+        void write(CbzWriter writer) throws IOException;
+    }
+
+    private void writeComic(
+        File targetFile,
+        ComicEntrySelector selector,
+        List<ArchiveEntry> entries,
+        EntryCopier copier
+    ) throws IOException {
+        var selection = selector.select(entries.stream().map(ArchiveEntry::path).toList());
+        writeComic(targetFile, writer -> copier.copy(selection, writer));
+    }
+
+    private void writeComic(File targetFile, ComicContents contents) throws IOException {
+        var writer = CbzWriterFactory.getCbzWriter(writerEngine, targetFile.toPath());
+        try (writer) {
+            contents.write(writer);
+        } catch (IOException e) {
+            // Do not leave a broken comic behind
+            Files.deleteIfExists(targetFile.toPath());
+            throw e;
+        }
+    }
+
     /**
      * Creates a zip file with the contents of an existing directory, excluding the instructed file extensions.
      * The zip file created has a normalized file name.
@@ -79,113 +299,67 @@ public class CompressionService {
             assert !Files.isSymbolicLink(directory.toPath());
             assert directory.isDirectory();
 
-            var targetFile = new File(
-                directory.getParentFile(),
-                new NameConverter().normalizeFileName(directory.getName() + ".cbz")
-            );
-
-            var specificExclusions = garbageCollector ? collectGarbage(directory, extensionsExcluded) : new LinkedList<File>();
-            // Detect trivial nesting case:
-            // Single subdirectory below root with every image hanging from there
-            var calculatedSourceDirectory = searchForTrivialNestingCase(directory, specificExclusions, extensionsExcluded);
-            compressDirectory(calculatedSourceDirectory, extensionsExcluded, specificExclusions, targetFile);
+            var plan = planComic(directory, garbageCollector, extensionsExcluded);
+            compressLayout(plan, plan.targetFile());
+            recordInManifest(plan.targetFile());
 
             // Zip file generated successfully - remove the original directory
             Utils.removeDirectory(directory);
         } catch (AssertionError | IOException ioe) { throw new CompressionException(ioe); }
     }
 
-    private void compressDirectory(
-        File sourceDirectory,
-        String[] extensionsExcluded,
-        List<File> specificExclusions,
-        File targetFile
-    ) throws IOException {
-        var p = Files.createFile(targetFile.toPath());
-        try (var zs = new ZipOutputStream(Files.newOutputStream(p))) {
-            zs.setMethod(STORED);
-            zs.setLevel(NO_COMPRESSION);
-            var pp = sourceDirectory.toPath();
-            Files.walk(pp)
-                .filter(path -> !Files.isDirectory(path))
-                .forEach(path -> {
-                    if (!isExcluded(path.toFile(), extensionsExcluded)
-                            && !specificExclusions.contains(path.toFile())) {
-                        var zipEntry = new ZipEntry(pp.relativize(path).toString());
-                        // Set all the necessary properties for STORED
-                        zipEntry.setSize(path.toFile().length());
-                        zipEntry.setCompressedSize(path.toFile().length());
-                        var crc = new CRC32();
-                        try { crc.update(Files.readAllBytes(path)); }
-                        catch (IOException e) { LogUtils.getDefaultLogger().severe(e.getMessage()); }
-                        zipEntry.setCrc(crc.getValue());
-                        try {
-                            zs.putNextEntry(zipEntry);
-                            Files.copy(path, zs);
-                            zs.closeEntry();
-                        } catch (IOException e) {
-                            LogUtils.getDefaultLogger().severe(e.getMessage());
-                        }
-                    }
-                });
-        }
+    /**
+     * What is going to be packed out of a directory
+     * @param directory Directory as it was given
+     * @param layout Every file under the directory
+     * @param selection Relative paths of the files making it into the comic, mapped to their names there, after
+     *                  leaving out exclusions and garbage and stripping trivial nesting
+     * @param targetFile Normalized name of the comic
+     */
+    record ComicPlan(File directory, ComicLayout layout, Map<String, String> selection, File targetFile) {}
+
+    ComicPlan planComic(File directory, Boolean garbageCollector, String... extensionsExcluded) throws IOException {
+        var targetFile = new File(
+            directory.getParentFile(),
+            new NameConverter().normalizeFileName(directory.getName() + ".cbz")
+        );
+        var layout = ComicLayout.scan(directory);
+        // Same rules as for the entries of an archive: garbage, exclusions and trivial nesting (single
+        //  subdirectory below root with every image hanging from there)
+        var selection = new ComicEntrySelector(garbageCollector, extensionsExcluded).select(layout.paths());
+        return new ComicPlan(directory, layout, selection, targetFile);
     }
 
-    // Searches for every image file in the directory and, if all of them are in the same place, it will
-    //  pack from there
-    private File searchForTrivialNestingCase(File directory, List<File> garbage, String... exclusions) {
-        var images = new HashMap<File, LinkedList<File>>();
-        var files = new LinkedList<File>();
-        files.add(directory);
-
-        while (!files.isEmpty()) {
-            var file = files.remove();
-            for (var f: file.listFiles()) {
-                if (f.isDirectory()) files.add(f);
-                else {
-                    if (!isExcluded(f, exclusions) && !garbage.contains(f)) {
-                        // if this is a valid image of the comic, then store in the list
-                        images.computeIfAbsent(f.getParentFile(), key -> new LinkedList<>()).add(f);
-                    }
-                }
-            }
-        }
+    // Writes the planned comic into a partial file, to be put in place by finishComic
+    void writePlannedComic(ComicPlan plan, File partialFile) throws IOException {
+        assert !partialFile.exists() : String.format("Cannot write %s - there is something in the way", partialFile);
+        compressLayout(plan, partialFile);
+    }
 
-        if (images.keySet().size() == 0 || images.keySet().size() > 1) return directory;
-        else return images.keySet().stream().findFirst().get();
-    }
-
-    private List<File> collectGarbage(File directory, String... exclusions) {
-        var garbage = new LinkedList<File>();
-        var files = new LinkedList<File>();
-        files.add(directory);
-        var patterns = Arrays.stream(DEFAULT_GARBAGE_PATTERNS).map(Pattern::compile).toList();
-
-        while (!files.isEmpty()) {
-            var file = files.remove();
-            if (file.isDirectory()) {
-                files.addAll(Arrays.stream(file.listFiles()).filter(File::isDirectory).toList());
-                garbage.addAll(Arrays.stream(file.listFiles()).filter(f -> {
-                    var isGarbage = false;
-                    if (!f.isDirectory() && !isExcluded(f, exclusions)) {
-                        for (var pattern: patterns) {
-                            isGarbage |= pattern.matcher(f.getName().toLowerCase()).matches();
-                        }
-                    }
-                    return isGarbage;
-                }).toList());
-            }
-        }
+    // Backs up the original comic, puts the new one in its place and removes the extracted directory
+    void finishComic(File comicFile, ComicPlan plan, File partialFile) throws IOException {
+        putInPlace(comicFile, partialFile, plan.targetFile());
+        Utils.removeDirectory(plan.directory());
+    }
 
-        return garbage;
+    private void compressLayout(ComicPlan plan, File targetFile) throws IOException {
+        var layout = plan.layout();
+        var writer = CbzWriterFactory.getCbzWriter(writerEngine, targetFile.toPath());
+        try (writer) {
+            for (var e: plan.selection().entrySet())
+                writer.addFile(e.getValue(), layout.file(e.getKey()), layout.attributes(e.getKey()));
+        } catch (IOException e) {
+            // Do not leave a broken comic behind
+            Files.deleteIfExists(targetFile.toPath());
+            throw e;
+        }
     }
 
-    private boolean isExcluded(File f, String... exclusions) {
-        var excluded = false;
-        if (exclusions != null)
-            for (var s: exclusions) {
-                excluded |= f.getName().toLowerCase().endsWith("." + s.toLowerCase());
-            }
-        return excluded;
+    private void recordInManifest(File comic) {
+        if (manifest != null) {
+            // The comic is fine anyway; it will just be processed again next time
+            try { manifest.record(comic); }
+            catch (IOException e) { LogUtils.getDefaultLogger().severe(e.getMessage()); }
+        }
     }
 }
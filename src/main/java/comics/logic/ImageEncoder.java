@@ -0,0 +1,113 @@
+package comics.logic;
+
+import comics.utils.Throttle;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Looking up a writer for every image, and letting its output grow from nothing, shows up in the profiles of
+//  documents with thousands of small images: every thread keeps its writers and its output buffer instead.
+//  The writers belong to the encoder, and are released by dispose once the document is over.  The output goes
+//  to memory, never to the ImageIO disk cache
+class ImageEncoder {
+
+    // Most pages take less than this once encoded; the buffers grow past it if needed, and stay like that
+    private static final int INITIAL_BUFFER_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal<ByteArrayOutputStream> BUFFERS =
+        ThreadLocal.withInitial(() -> new ByteArrayOutputStream(INITIAL_BUFFER_SIZE));
+
+    // Null for the default quality of every format
+    private final Float quality;
+    private final boolean progressive;
+    private final ThreadLocal<Map<String, ImageWriter>> writers = ThreadLocal.withInitial(HashMap::new);
+    // Every writer handed to any thread, to be disposed at the end
+    private final Queue<ImageWriter> created = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param quality Between 0 and 1, or null for the default quality of the format; ignored by formats
+     *                without compression settings
+     * @param progressive If set, images are written progressive (interlaced) where the format allows it
+     */
+    ImageEncoder(Float quality, boolean progressive) {
+        assert quality == null || (quality >= 0 && quality <= 1) : "Please specify a quality between 0 and 1";
+        this.quality = quality;
+        this.progressive = progressive;
+    }
+
+    byte[] encode(RenderedImage image, String format) throws IOException {
+        var writer = writer(format);
+        var encodable = writer.getOriginatingProvider().canEncodeImage(image) ? image : flatten(image);
+        var buffer = BUFFERS.get();
+        buffer.reset();
+        Throttle.inCpuStage(() -> {
+            try (var output = new MemoryCacheImageOutputStream(buffer)) {
+                writer.setOutput(output);
+                writer.write(null, new IIOImage(encodable, null, null), parameters(writer));
+            } finally {
+                writer.setOutput(null);
+            }
+        });
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Releases the writers of every thread; nothing may be encoded any longer, nor be being encoded
+     */
+    void dispose() {
+        ImageWriter writer;
+        while ((writer = created.poll()) != null) writer.dispose();
+    }
+
+    private ImageWriter writer(String format) throws IOException {
+        var threadWriters = writers.get();
+        var writer = threadWriters.get(format);
+        if (writer == null) {
+            var candidates = ImageIO.getImageWritersByFormatName(format);
+            if (!candidates.hasNext()) throw new IOException(String.format("No writer available for %s", format));
+            writer = candidates.next();
+            threadWriters.put(format, writer);
+            created.add(writer);
+        }
+        return writer;
+    }
+
+    private ImageWriteParam parameters(ImageWriter writer) {
+        var parameters = writer.getDefaultWriteParam();
+        if (quality != null && parameters.canWriteCompressed()) {
+            parameters.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            if (parameters.getCompressionType() == null && parameters.getCompressionTypes() != null)
+                parameters.setCompressionType(parameters.getCompressionTypes()[0]);
+            parameters.setCompressionQuality(quality);
+        }
+        if (parameters.canWriteProgressive())
+            parameters.setProgressiveMode(progressive ? ImageWriteParam.MODE_DEFAULT : ImageWriteParam.MODE_DISABLED);
+        return parameters;
+    }
+
+    // Formats like jpeg cannot hold transparency: images with soft masks go on a white background
+    private RenderedImage flatten(RenderedImage image) {
+        var flat = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        var graphics = flat.createGraphics();
+        try {
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, image.getWidth(), image.getHeight());
+            graphics.drawRenderedImage(image, null);
+        } finally {
+            graphics.dispose();
+        }
+        return flat;
+    }
+}
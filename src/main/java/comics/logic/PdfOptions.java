@@ -0,0 +1,52 @@
+package comics.logic;
+
+import java.io.File;
+
+import lombok.Builder;
+import lombok.Getter;
+
+// Tuning of the PDF conversion; PdfOptions.builder().build() keeps the defaults
+@Getter
+@Builder
+public class PdfOptions {
+
+    // If set, images already encoded in the requested format are written as they are stored in the PDF
+    @Builder.Default
+    private final boolean passThrough = true;
+
+    // Main memory PDFBox may use for each document before spilling its buffers into scratch files
+    @Builder.Default
+    private final long maxMainMemoryBytes = 64L * 1024 * 1024;
+
+    // Directory for the scratch files; the system temporary directory if null
+    @Builder.Default
+    private final File scratchDirectory = null;
+
+    // Threads encoding and writing the images of each document, while the caller keeps extracting them
+    @Builder.Default
+    private final int encoderThreads = Runtime.getRuntime().availableProcessors();
+
+    // Images referenced more than once in the same document
+    @Builder.Default
+    private final RepeatedImagePolicy repeatedImages = RepeatedImagePolicy.DUPLICATE;
+
+    // If set, every page is rendered, even if it has images; otherwise only pages without images are
+    @Builder.Default
+    private final boolean renderAllPages = false;
+
+    // Resolution of the rendered pages
+    @Builder.Default
+    private final float renderDpi = 150;
+
+    // Memory the pages being rendered at the same time may take
+    @Builder.Default
+    private final long renderMemoryBytes = 512L * 1024 * 1024;
+
+    // Between 0 and 1; the default quality of the format if null
+    @Builder.Default
+    private final Float quality = null;
+
+    // If set, images are written progressive (interlaced) where the format allows it
+    @Builder.Default
+    private final boolean progressive = false;
+}
@@ -1,28 +1,45 @@
 package comics.logic;
 
+import comics.logic.compression.CbzWriter;
 import comics.utils.BackupService;
+import comics.utils.Throttle;
 import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.io.MemoryUsageSetting;
 import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.PDResources;
-import org.apache.pdfbox.pdmodel.graphics.PDXObject;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceRGB;
+import org.apache.pdfbox.pdmodel.graphics.color.PDICCBased;
 import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
 import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
 
 import javax.imageio.ImageIO;
 import javax.imageio.spi.IIORegistry;
 import javax.imageio.spi.ImageWriterSpi;
-import java.awt.image.RenderedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
-import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
-import java.util.regex.Pattern;
-
-import static comics.utils.Utils.emptyIfNull;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 // By far the class with the greatest amount of code straight from stackoverflow ¯\_(ツ)_/¯
 public class PdfService {
@@ -40,6 +57,26 @@ public class PdfService {
         }
     }
 
+    // Formats whose encoded streams can be written as they are, by PDImageXObject suffix
+    private static final Set<String> JPEG_FORMATS = Set.of("jpg", "jpeg");
+    private static final List<String> JPEG_STOP_FILTERS = List.of(COSName.DCT_DECODE.getName());
+
+    private final PdfOptions options;
+    // Repeated images that the last document finished still held on to; none, unless they leak
+    private volatile int sharedImagesLeft = 0;
+
+    public PdfService() {
+        this(PdfOptions.builder().build());
+    }
+
+    public PdfService(PdfOptions options) {
+        this.options = options;
+    }
+
+    int sharedImagesLeft() {
+        return sharedImagesLeft;
+    }
+
     private static class Counter {
         private int counter = 1;
 
@@ -48,15 +85,6 @@ public class PdfService {
         }
     }
 
-    private int extractIndex(String imageName, String sanitizedFormat) {
-        var ret = -1;
-        var matcher = Pattern.compile("image_(\\d+)\\." + sanitizedFormat).matcher(imageName);
-        if (matcher.find()) {
-            ret = Integer.parseInt(matcher.group(1));
-        }
-        return ret;
-    }
-
     /**
      * Will convert the pdf contents into images inside a new directory with the same name
      * of the pdf, without extension
@@ -66,48 +94,76 @@ public class PdfService {
      * @throws IOException Sums up all the possible problems here
      */
     public File convertPDF(File pdf, String format) throws IOException {
-        assert pdf != null : "Please provide a non-null PDF file";
-        assert !pdf.isDirectory() : "Please do not try to convert a directory";
-        assert !Files.isSymbolicLink(pdf.toPath()) : "It is not possible to convert a symbolic link";
-        assert format != null : "Please provide a non-null format";
-        var sanitizedFormat = format.toLowerCase();
-        assert formats.contains(sanitizedFormat) : "Please provide a valid format.  Available formats: "
-            + String.join("\n", formats);
+        var sanitizedFormat = checkConversion(pdf, format);
 
-        var document = Loader.loadPDF(pdf);
         // Dump the images into the parent directory
         var newDirectory = new File(pdf.getParent(), pdf.getName().substring(0, pdf.getName().lastIndexOf('.')));
         if (!newDirectory.mkdir()) throw new IOException(String.format("Unable to create directory %s", newDirectory));
-        dumpImagesFromPDF(document, newDirectory, sanitizedFormat);
-        /* Images will be like:
-            image_1.jpg
-            image_2.jpg
-            ...
-            image_99.jpg
-            ...
-            image_999.jpg
-
-            Now we rename them, left padding page number with zeroes
-        */
-        var images = emptyIfNull(newDirectory.list((f, s) -> s.toLowerCase().endsWith(sanitizedFormat)));
-        var total = images.length;
-        for (var image: images) {
-            var imageFile = new File(newDirectory, image);
-            var index = extractIndex(image, sanitizedFormat);
-            Files.move(imageFile.toPath(), calculateFilePath(newDirectory, index, total, sanitizedFormat));
+        try (var document = loadDocument(pdf)) {
+            dumpImagesFromPDF(
+                pdf,
+                document,
+                sanitizedFormat,
+                (fileName, bytes) -> writeBytes(newDirectory, bytes, fileName),
+                false
+            );
         }
         // Remove original file
         new BackupService().backupFile(pdf);
         return newDirectory;
     }
 
-    private Path calculateFilePath(File directory, int i, int total, String format) {
-        int width = Integer.toString(total).length();
-        return new File(directory, String.format("image_%0" + width + "d.%s", i, format)).toPath();
+    /**
+     * Writes the pdf contents as images straight into a comic, in the same order and with the same names
+     * convertPDF would give them.  The pdf itself is left alone
+     * @param pdf PDF original file
+     * @param format Desired format, as admitted by ImageIO
+     * @param writer Comic being written
+     * @throws IOException Sums up all the possible problems here
+     */
+    void writeComic(File pdf, String format, CbzWriter writer) throws IOException {
+        var sanitizedFormat = checkConversion(pdf, format);
+        var lastModified = Files.getLastModifiedTime(pdf.toPath());
+        try (var document = loadDocument(pdf)) {
+            dumpImagesFromPDF(
+                pdf,
+                document,
+                sanitizedFormat,
+                (fileName, bytes) -> {
+                    try (var os = writer.newEntry(fileName, lastModified)) { os.write(bytes); }
+                },
+                true
+            );
+        }
     }
 
-    private String calculateTemporalFilename(Counter counter, String format) {
-        return String.format("image_%d.%s", counter.postIncrease(), format);
+    private String checkConversion(File pdf, String format) {
+        assert pdf != null : "Please provide a non-null PDF file";
+        assert !pdf.isDirectory() : "Please do not try to convert a directory";
+        assert !Files.isSymbolicLink(pdf.toPath()) : "It is not possible to convert a symbolic link";
+        assert format != null : "Please provide a non-null format";
+        var sanitizedFormat = format.toLowerCase();
+        assert formats.contains(sanitizedFormat) : "Please provide a valid format.  Available formats: "
+            + String.join("\n", formats);
+        return sanitizedFormat;
+    }
+
+    // The file is read on demand instead of being loaded in memory, and PDFBox buffers beyond the configured
+    //  budget go to scratch files.  No resources are cached, so that the images of a page can be released as
+    //  soon as the page is done
+    private PDDocument loadDocument(File pdf) throws IOException {
+        var memoryUsage = MemoryUsageSetting.setupMixed(options.getMaxMainMemoryBytes());
+        if (options.getScratchDirectory() != null) memoryUsage.setTempDir(options.getScratchDirectory());
+        var document = Loader.loadPDF(pdf, memoryUsage.streamCache);
+        document.setResourceCache(null);
+        return document;
+    }
+
+    // Page numbers are left padded with zeroes, so that the images sort as they appear in the pdf:
+    //  image_001.jpg, image_002.jpg, ..., image_999.jpg
+    private String calculateFilename(Counter counter, int total, String format) {
+        int width = Integer.toString(total).length();
+        return String.format("image_%0" + width + "d.%s", counter.postIncrease(), format);
     }
 
     private void writeBytes(File directory, byte[] bytes, String fileName) throws IOException {
@@ -115,51 +171,303 @@ public class PdfService {
         if (targetFile.createNewFile()) Files.write(targetFile.toPath(), bytes);
     }
 
-    public static byte[] toByteArray(RenderedImage bi, String format)
-        throws IOException {
+    // Whatever is left to do with an image once it is out of the document
+    @FunctionalInterface
+    private interface PendingImage {
+        byte[] encode() throws IOException;
+    }
+
+    // Repeated images are encoded by whichever task gets them first; the rest reuse the bytes
+    private static class SharedImage implements PendingImage {
+        // Dropped once encoded, so that the decoded image is not kept along with its bytes
+        private PendingImage pending;
+        private byte[] bytes = null;
+
+        SharedImage(PendingImage pending) {
+            this.pending = pending;
+        }
+
+        @Override
+        public synchronized byte[] encode() throws IOException {
+            if (bytes == null) {
+                bytes = pending.encode();
+                pending = null;
+            }
+            return bytes;
+        }
+    }
 
-        var baos = new ByteArrayOutputStream();
-        ImageIO.write(bi, format, baos);
-        return baos.toByteArray();
+    // Reading from the document is not thread safe, so the image is decoded (or its stream copied) by the caller;
+    //  only the encoding is left for later
+    private PendingImage extract(PDImageXObject image, String format, ImageEncoder encoder) throws IOException {
+        if (options.isPassThrough() && canPassThrough(image, format)) {
+            // Whatever filters wrap the JPEG data are decoded; the JPEG data itself is left alone
+            try (var is = image.getStream().createInputStream(JPEG_STOP_FILTERS)) {
+                var bytes = is.readAllBytes();
+                return () -> bytes;
+            }
+        }
+        var decoded = Throttle.inCpuStage(() -> image.getImage());
+        return () -> encoder.encode(decoded, format);
+    }
 
+    // Only plain JPEG images are written as they are: masks, decode arrays or CMYK/indexed color spaces
+    //  would render differently outside of the PDF
+    private boolean canPassThrough(PDImageXObject image, String format) throws IOException {
+        if (!JPEG_FORMATS.contains(format) || !JPEG_FORMATS.contains(image.getSuffix())) return false;
+        var filters = image.getStream().getFilters();
+        if (filters.isEmpty() || !COSName.DCT_DECODE.equals(filters.get(filters.size() - 1))) return false;
+        if (image.getMask() != null || image.getSoftMask() != null || image.getDecode() != null) return false;
+        var colorSpace = image.getColorSpace();
+        return colorSpace instanceof PDDeviceGray
+            || colorSpace instanceof PDDeviceRGB
+            || (colorSpace instanceof PDICCBased icc && icc.getNumberOfComponents() != 4);
+    }
+
+    // Where the images go once encoded
+    @FunctionalInterface
+    private interface ImageSink {
+        void write(String fileName, byte[] bytes) throws IOException;
+    }
+
+    // Extraction follows the order of the pages in the caller thread, so the names given by the counter are
+    //  always the same; encoding goes to a pool.  An ordered sink gets the images from the caller thread in
+    //  that same order, any other sink is called from the pool as soon as each image is ready.  Decoded images
+    //  take a lot of memory, so only a few of them may be waiting for the pool at any time.
+    // Pages are rendered by a pool of their own, every thread with its own handle on the pdf: documents are not
+    //  thread safe
+    private class ImageDump {
+        private final File pdf;
+        private final String format;
+        private final ImageReferences references;
+        private final ImageSink sink;
+        private final boolean ordered;
+        private final Counter counter = new Counter();
+        private final ExecutorService pool;
+        // One per document, so that its cached writers are disposed together with the pools
+        private final ImageEncoder encoder = new ImageEncoder(options.getQuality(), options.isProgressive());
+        private final int maxInFlight;
+        private final Deque<Future<Image>> tasks = new ArrayDeque<>();
+        // Repeated images already extracted, until their last reference is written
+        private final Map<COSBase, SharedImage> shared = new IdentityHashMap<>();
+        private final Map<COSBase, Integer> seen = new IdentityHashMap<>();
+        private ExecutorService renderPool = null;
+        private final ThreadLocal<PDFRenderer> renderers = new ThreadLocal<>();
+        private final Queue<PDDocument> handles = new ConcurrentLinkedQueue<>();
+
+        private record Image(String fileName, byte[] bytes) {}
+
+        ImageDump(
+            File pdf,
+            String format,
+            ImageReferences references,
+            ImageSink sink,
+            boolean ordered,
+            int threads
+        ) {
+            this.pdf = pdf;
+            this.format = format;
+            this.references = references;
+            this.sink = sink;
+            this.ordered = ordered;
+            this.pool = Executors.newFixedThreadPool(threads);
+            this.maxInFlight = threads * 2;
+        }
+
+        void add(PDImageXObject image) throws IOException {
+            var key = image.getCOSObject();
+            var count = references.count(key);
+            var occurrence = seen.merge(key, 1, Integer::sum);
+            if (count > 1 && options.getRepeatedImages() == RepeatedImagePolicy.SKIP) return;
+            if (occurrence > 1 && options.getRepeatedImages() == RepeatedImagePolicy.ONCE) return;
+
+            var fileName = calculateFilename(counter, references.total(), format);
+            while (tasks.size() >= maxInFlight) complete(tasks.removeFirst());
+            PendingImage pending;
+            // Under ONCE, a repeated image is only written once: there is nothing to share
+            if (count > 1 && options.getRepeatedImages() == RepeatedImagePolicy.DUPLICATE) {
+                var sharedImage = shared.get(key);
+                if (sharedImage == null) {
+                    sharedImage = new SharedImage(extract(image, format, encoder));
+                    shared.put(key, sharedImage);
+                }
+                // The tasks keep the bytes as long as they need them
+                if (occurrence == count) shared.remove(key);
+                pending = sharedImage;
+            } else pending = extract(image, format, encoder);
+            tasks.addLast(pool.submit(() -> {
+                var bytes = pending.encode();
+                if (ordered) return new Image(fileName, bytes);
+                sink.write(fileName, bytes);
+                return null;
+            }));
+        }
+
+        void render(int pageIndex) throws IOException {
+            var fileName = calculateFilename(counter, references.total(), format);
+            while (tasks.size() >= maxInFlight) complete(tasks.removeFirst());
+            if (renderPool == null) renderPool = Executors.newFixedThreadPool(references.renderThreads());
+            tasks.addLast(renderPool.submit(() -> {
+                var renderer = renderer();
+                var image = Throttle.inCpuStage(
+                    () -> renderer.renderImageWithDPI(pageIndex, options.getRenderDpi(), ImageType.RGB)
+                );
+                var bytes = encoder.encode(image, format);
+                if (ordered) return new Image(fileName, bytes);
+                sink.write(fileName, bytes);
+                return null;
+            }));
+        }
+
+        private PDFRenderer renderer() throws IOException {
+            var renderer = renderers.get();
+            if (renderer == null) {
+                var handle = loadDocument(pdf);
+                handles.add(handle);
+                renderer = new PDFRenderer(handle);
+                renderers.set(renderer);
+            }
+            return renderer;
+        }
+
+        void finish() throws IOException {
+            try {
+                while (!tasks.isEmpty()) complete(tasks.removeFirst());
+                sharedImagesLeft = shared.size();
+            } finally {
+                abort();
+            }
+        }
+
+        void abort() throws IOException {
+            pool.shutdownNow();
+            if (renderPool != null) renderPool.shutdownNow();
+            // Neither an image being encoded nor a page being rendered can be interrupted: the writers and the
+            //  documents cannot be released under them
+            try {
+                if (!pool.awaitTermination(1, TimeUnit.MINUTES)) return;
+                if (renderPool != null && !renderPool.awaitTermination(1, TimeUnit.MINUTES)) return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            encoder.dispose();
+            for (var handle : handles) handle.close();
+        }
+
+        private void complete(Future<Image> task) throws IOException {
+            try {
+                var image = task.get();
+                if (ordered) sink.write(image.fileName(), image.bytes());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing images", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException ioe) throw ioe;
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    // How many times every image object is referenced in a document, which pages must be rendered instead, and
+    //  how many images are written because of all that
+    private class ImageReferences {
+        private final Map<COSBase, Integer> counts = new IdentityHashMap<>();
+        private int references = 0;
+        private final List<Boolean> rendered = new ArrayList<>();
+        private long largestRender = 0;
+
+        ImageReferences(PDDocument document) throws IOException {
+            for (var page : document.getDocumentCatalog().getPages()) {
+                var before = references;
+                if (!options.isRenderAllPages()) collect(page.getResources());
+                // Pages drawn with vectors or text have no image to extract
+                var render = options.isRenderAllPages() || references == before;
+                rendered.add(render);
+                if (render) largestRender = Math.max(largestRender, renderedBytes(page));
+            }
+        }
+
+        // Images are not decoded just to count them
+        private void collect(PDResources resources) throws IOException {
+            for (var xObjectName : resources.getXObjectNames()) {
+                var xObject = resources.getXObject(xObjectName);
+                if (xObject instanceof PDFormXObject form) collect(form.getResources());
+                else if (xObject instanceof PDImageXObject image) {
+                    counts.merge(image.getCOSObject(), 1, Integer::sum);
+                    references++;
+                }
+            }
+        }
+
+        // Size of the RGB raster of the page, plus the same again for the encoder
+        private long renderedBytes(PDPage page) {
+            var box = page.getCropBox();
+            var scale = options.getRenderDpi() / 72f;
+            return (long) Math.ceil(box.getWidth() * scale) * (long) Math.ceil(box.getHeight() * scale) * 3 * 2;
+        }
+
+        int count(COSBase image) {
+            return counts.getOrDefault(image, 0);
+        }
+
+        boolean isRendered(int pageIndex) {
+            return rendered.get(pageIndex);
+        }
+
+        // As many pages are rendered at the same time as fit in the memory budget
+        int renderThreads() {
+            var fitting = largestRender == 0 ? Integer.MAX_VALUE : options.getRenderMemoryBytes() / largestRender;
+            return (int) Math.max(1, Math.min(options.getEncoderThreads(), fitting));
+        }
+
+        int total() {
+            var renderedPages = (int) rendered.stream().filter(r -> r).count();
+            return renderedPages + switch (options.getRepeatedImages()) {
+                case DUPLICATE -> references;
+                case ONCE -> counts.size();
+                case SKIP -> (int) counts.values().stream().filter(c -> c == 1).count();
+            };
+        }
     }
 
     private void dumpImagesFromPDF(
+        File pdf,
         PDDocument document,
-        File directory,
-        String format
+        String format,
+        ImageSink sink,
+        boolean ordered
     ) throws IOException {
-        var counter = new Counter();
-        for (var page : document.getDocumentCatalog().getPages())
-            dumpImagesFromResources(page.getResources(), directory, format, counter);
+        assert options.getEncoderThreads() > 0 : "Please provide a positive number of encoder threads";
+        assert options.getRenderDpi() > 0 : "Please provide a positive resolution for rendered pages";
+        // The width of the page numbers must be known before the first image is named
+        var references = new ImageReferences(document);
+        var dump = new ImageDump(pdf, format, references, sink, ordered, options.getEncoderThreads());
+        try {
+            var pageIndex = 0;
+            for (var page : document.getDocumentCatalog().getPages()) {
+                if (references.isRendered(pageIndex)) dump.render(pageIndex);
+                else dumpImagesFromResources(page.getResources(), dump);
+                pageIndex++;
+            }
+        } catch (IOException | RuntimeException e) {
+            try { dump.abort(); }
+            catch (IOException suppressed) { e.addSuppressed(suppressed); }
+            throw e;
+        }
+        dump.finish();
     }
 
     private void dumpImagesFromResources(
         PDResources resources,
-        File directory,
-        String format,
-        Counter counter
+        ImageDump dump
     ) throws IOException {
         for (var xObjectName : resources.getXObjectNames()) {
             var xObject = resources.getXObject(xObjectName);
 
             if (xObject instanceof PDFormXObject)
-                dumpImagesFromResources(
-                    ((PDFormXObject) xObject).getResources(),
-                    directory,
-                    format,
-                    counter
-                );
-            else if (xObject instanceof PDImageXObject) {
-                writeBytes(
-                    directory,
-                    toByteArray(
-                        ((PDImageXObject) xObject).getImage(),
-                        format
-                    ),
-                    calculateTemporalFilename(counter, format)
-                );
-            }
+                dumpImagesFromResources(((PDFormXObject) xObject).getResources(), dump);
+            else if (xObject instanceof PDImageXObject) dump.add((PDImageXObject) xObject);
         }
     }
 }
@@ -0,0 +1,123 @@
+package comics.logic;
+
+import comics.utils.Journal;
+import comics.utils.Journal.State;
+import comics.utils.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * A comic going through the stages of repack: extract, analyze, write and back up.  The original comic stays
+ * where it is until the new one is complete, and a failure in any stage leaves it untouched, removing whatever
+ * the earlier stages left behind.  Comics repacked without an intermediate directory skip extraction: their
+ * entries go straight from the archive into the new comic in the write stage.  Every stage is recorded in the
+ * journal, and so are the directory and the partial file before they are created, for an interrupted run to be
+ * resumed.
+ */
+public class RepackJob {
+
+    private final File comicFile;
+    private final CompressionService compressionService;
+    private final Journal journal;
+    private final boolean direct;
+    private final Boolean garbageCollector;
+    private final String[] extensionsExcluded;
+    private File directory = null;
+    private CompressionService.ComicPlan plan = null;
+    private File targetFile = null;
+    private File partialFile = null;
+
+    /**
+     * @param comicFile Not null, existing, non-directory, non-symlink, 7z-compatible compressed file
+     * @param compressionService Service doing the actual work
+     * @param journal Where the progress of the comic is recorded
+     * @param direct If set, the comic is repacked without extracting it into a directory; only for comics that
+     *  CompressionService.canRepackDirectly
+     * @param garbageCollector If set, files that do not seem to belong to the comic are dropped
+     * @param extensionsExcluded Extensions of files forbidden in the final comic
+     */
+    public RepackJob(
+        File comicFile,
+        CompressionService compressionService,
+        Journal journal,
+        boolean direct,
+        Boolean garbageCollector,
+        String... extensionsExcluded
+    ) {
+        this.comicFile = comicFile;
+        this.compressionService = compressionService;
+        this.journal = journal;
+        this.direct = direct;
+        this.garbageCollector = garbageCollector;
+        this.extensionsExcluded = extensionsExcluded;
+    }
+
+    public void extract() throws CompressionException {
+        if (direct) return;
+        try {
+            var target = CompressionService.extractionDirectory(comicFile);
+            // If something is in the way, it is not ours: extractComic will refuse to go on
+            if (!target.exists()) journal.record(comicFile, State.EXTRACTING, target);
+            directory = compressionService.extractComic(comicFile);
+            journal.record(comicFile, State.EXTRACTED);
+        } catch (IOException | AssertionError e) {
+            throw failed(e);
+        }
+    }
+
+    // Garbage and trivial nesting, unless the entries are selected on their way from the archive
+    public void analyze() throws CompressionException {
+        try {
+            if (direct) {
+                targetFile = CompressionService.repackTarget(comicFile);
+            } else {
+                plan = compressionService.planComic(directory, garbageCollector, extensionsExcluded);
+                targetFile = plan.targetFile();
+            }
+            // The target may well be the original comic, if its name was already normalized
+            assert !targetFile.exists() || targetFile.equals(comicFile) :
+                String.format("Cannot repack %s - there is something in the way", comicFile);
+            var partial = CompressionService.partialFileOf(targetFile);
+            assert !partial.exists() : String.format("Cannot repack %s - there is something in the way", comicFile);
+            journal.record(comicFile, State.PACKING, partial);
+            partialFile = partial;
+        } catch (IOException | AssertionError e) {
+            throw failed(e);
+        }
+    }
+
+    public void write() throws CompressionException {
+        try {
+            if (direct) compressionService.writeDirectly(comicFile, partialFile, garbageCollector, extensionsExcluded);
+            else compressionService.writePlannedComic(plan, partialFile);
+            journal.record(comicFile, State.PACKED);
+        } catch (IOException | AssertionError e) {
+            throw failed(e);
+        }
+    }
+
+    public void backup() throws CompressionException {
+        try {
+            if (direct) compressionService.putInPlace(comicFile, partialFile, targetFile);
+            else compressionService.finishComic(comicFile, plan, partialFile);
+            journal.record(comicFile, State.BACKED_UP);
+        } catch (IOException | AssertionError e) {
+            // Once backed up, the new comic is the only one left in place: keep it
+            if (!comicFile.exists()) throw new CompressionException(e);
+            throw failed(e);
+        }
+    }
+
+    // The original comic is still there: everything else goes
+    private CompressionException failed(Throwable cause) {
+        try {
+            if (partialFile != null) Files.deleteIfExists(partialFile.toPath());
+            if (directory != null && directory.isDirectory()) Utils.removeDirectory(directory);
+        } catch (IOException | AssertionError e) {
+            cause.addSuppressed(e);
+        }
+        return new CompressionException(cause);
+    }
+}
@@ -0,0 +1,29 @@
+package comics.logic;
+
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+// What to do with image objects that a pdf references more than once (watermarks, backgrounds, logos...)
+public enum RepeatedImagePolicy {
+    // Every reference is written, but the image is decoded and encoded only once
+    DUPLICATE,
+    // Only the first reference is written
+    ONCE,
+    // None of the references is written
+    SKIP;
+
+    public static RepeatedImagePolicy parse(String value) {
+        assert value != null : "Please specify a non-null policy for repeated images";
+        try {
+            return valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(
+                String.format(
+                    "Unknown policy for repeated images '%s'.  Available policies: %s",
+                    value,
+                    Arrays.stream(values()).map(v -> v.name().toLowerCase()).collect(Collectors.joining(", "))
+                )
+            );
+        }
+    }
+}
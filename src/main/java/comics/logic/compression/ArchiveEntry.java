@@ -0,0 +1,11 @@
+package comics.logic.compression;
+
+import java.nio.file.attribute.FileTime;
+
+/**
+ * File stored inside a compressed comic
+ * @param path Path of the file inside the archive, with '/' as separator
+ * @param size Uncompressed size, in bytes
+ * @param lastModified Modification time, or null if the archive does not record it
+ */
+public record ArchiveEntry(String path, long size, FileTime lastModified) { }
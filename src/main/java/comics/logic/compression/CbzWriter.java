@@ -0,0 +1,63 @@
+package comics.logic.compression;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+// Writes the entries of a .cbz file; every entry is STORED, as most of the older readers expect.
+// Entries are written one at a time: a stream returned by newEntry must be closed before adding anything else
+public interface CbzWriter extends Closeable {
+
+    /**
+     * Appends the contents of a file to the comic
+     * @param entryName Name of the entry inside the comic, with '/' as separator
+     * @param source Existing, non-directory file whose contents will be stored
+     * @throws IOException If the file cannot be read or the comic cannot be written
+     */
+    default void addFile(String entryName, Path source) throws IOException {
+        addFile(entryName, source, Files.readAttributes(source, BasicFileAttributes.class));
+    }
+
+    /**
+     * Appends the contents of a file to the comic, trusting attributes already read by the caller
+     * @param entryName Name of the entry inside the comic, with '/' as separator
+     * @param source Existing, non-directory file whose contents will be stored
+     * @param attributes Size and modification time of the file
+     * @throws IOException If the file cannot be read or the comic cannot be written
+     */
+    void addFile(String entryName, Path source, BasicFileAttributes attributes) throws IOException;
+
+    /**
+     * Starts a new entry whose contents will be provided by the caller
+     * @param entryName Name of the entry inside the comic, with '/' as separator
+     * @param lastModified Modification time of the entry; current time is used if null
+     * @return Stream receiving the contents of the entry; closing it completes the entry
+     * @throws IOException If the comic cannot be written
+     */
+    OutputStream newEntry(String entryName, FileTime lastModified) throws IOException;
+
+    /**
+     * Copies an entry already STORED in another zip file, as it is, reusing its crc-32 and size.  Writers that
+     *  checksum the data on the way anyway fail if it does not match
+     * @param entryName Name of the entry inside the comic, encoded as it will be written
+     * @param lastModified Modification time of the entry
+     * @param crc crc-32 of the contents, as recorded by the source
+     * @param size Size of the contents, in bytes
+     * @param source Channel of the source zip file
+     * @param dataOffset Position of the source where the contents begin
+     * @throws IOException If the source cannot be read or the comic cannot be written
+     */
+    void transferEntry(
+        ZipEntryName entryName,
+        FileTime lastModified,
+        long crc,
+        long size,
+        FileChannel source,
+        long dataOffset
+    ) throws IOException;
+}
@@ -0,0 +1,28 @@
+package comics.logic.compression;
+
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+public enum CbzWriterEngine {
+    // Single pass over a FileChannel: the CRC is computed while the page is copied and patched afterwards
+    CHANNEL,
+    // Like CHANNEL, but several threads copy the pages into their planned positions of the file at the same time
+    PARALLEL,
+    // java.util.zip.ZipOutputStream: every page is read whole into the heap, since its CRC must be known first
+    STREAM;
+
+    public static CbzWriterEngine parse(String value) {
+        assert value != null : "Please specify a non-null writer engine";
+        try {
+            return valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(
+                String.format(
+                    "Unknown writer engine '%s'.  Available engines: %s",
+                    value,
+                    Arrays.stream(values()).map(v -> v.name().toLowerCase()).collect(Collectors.joining(", "))
+                )
+            );
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package comics.logic.compression;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+import cli.LogUtils;
+import comics.utils.Throttle;
+
+public class CbzWriterFactory {
+
+    private static final Logger LOGGER = LogUtils.getDefaultLogger();
+    // Every PARALLEL writer copies through the same threads, as many as CPU-bound jobs may run at once, so that
+    //  several comics written at the same time do not multiply them
+    private static ExecutorService copyPool = null;
+    private static int copyPoolSize = 0;
+
+    /**
+     * Creates a writer for a new comic file
+     * @param engine Implementation to be used
+     * @param targetFile Comic file to be created; it must not exist
+     * @return A writer that must be closed in order to complete the comic
+     * @throws IOException If the target file cannot be created
+     */
+    public static CbzWriter getCbzWriter(CbzWriterEngine engine, Path targetFile) throws IOException {
+        LOGGER.finest(String.format("Using the %s writer engine for %s", engine, targetFile));
+        return switch (engine) {
+            case CHANNEL -> new ChannelCbzWriter(targetFile);
+            case PARALLEL -> new ParallelCbzWriter(targetFile, copyPool());
+            case STREAM -> new ZipStreamCbzWriter(targetFile);
+        };
+    }
+
+    // Follows the CPU throttle, if a command configures it again; the tasks already submitted to an older pool
+    //  still complete
+    private static synchronized ExecutorService copyPool() {
+        var size = Throttle.cpu().getMaxPermits();
+        if (copyPool == null || copyPoolSize != size) {
+            if (copyPool != null) copyPool.shutdown();
+            copyPool = Executors.newFixedThreadPool(size, Thread.ofPlatform().daemon().name("cbz-copy-", 0).factory());
+            copyPoolSize = size;
+        }
+        return copyPool;
+    }
+}
@@ -0,0 +1,159 @@
+package comics.logic.compression;
+
+import comics.utils.Throttle;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static comics.logic.compression.ZipRecords.LOCAL_HEADER_CRC_OFFSET;
+import static comics.logic.compression.ZipRecords.ZIP32_LIMIT;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+// Reads every page only once: the local header is written with a blank crc-32, the page is copied
+//  through a reusable direct buffer updating the checksum on the way, and then the header is patched
+class ChannelCbzWriter implements CbzWriter {
+
+    static final int BUFFER_SIZE = 256 * 1024;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final List<ZipRecords.Entry> entries = new ArrayList<>();
+    private long position = 0;
+
+    ChannelCbzWriter(Path targetFile) throws IOException {
+        channel = FileChannel.open(targetFile, CREATE_NEW, WRITE);
+    }
+
+    @Override
+    public void addFile(String entryName, Path source, BasicFileAttributes attributes) throws IOException {
+        try (var in = FileChannel.open(source, READ)) {
+            var size = attributes.size();
+            if (size >= ZIP32_LIMIT) throw new IOException(String.format("%s is too big to be stored", source));
+            var name = ZipRecords.encodeName(entryName);
+            var dosTime = ZipRecords.dosTime(attributes.lastModifiedTime());
+            var offset = startEntry(name, dosTime, size);
+
+            var crc = new CRC32();
+            var copied = 0L;
+            buffer.clear();
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                // Only the checksum of each chunk is a stage: reading and writing it are not CPU work
+                Throttle.inCpuStage(() -> crc.update(buffer));
+                // The checksum consumed the buffer; flip again in order to write the very same bytes
+                buffer.flip();
+                copied += writeFully(buffer, position + copied);
+                buffer.clear();
+            }
+            if (copied != size) throw new IOException(String.format("%s changed while being stored", source));
+            position += copied;
+            completeEntry(name, dosTime, crc.getValue(), size, offset);
+        }
+    }
+
+    @Override
+    public OutputStream newEntry(String entryName, FileTime lastModified) throws IOException {
+        var name = ZipRecords.encodeName(entryName);
+        var dosTime = ZipRecords.dosTime(
+            lastModified == null ? FileTime.fromMillis(System.currentTimeMillis()) : lastModified
+        );
+        return new EntryStream(name, dosTime, startEntry(name, dosTime, 0));
+    }
+
+    @Override
+    public void transferEntry(
+        ZipEntryName name,
+        FileTime lastModified,
+        long crc,
+        long size,
+        FileChannel source,
+        long dataOffset
+    ) throws IOException {
+        if (size >= ZIP32_LIMIT) throw new IOException(String.format("%s is too big to be stored", name));
+        var dosTime = ZipRecords.dosTime(lastModified);
+        var offset = position;
+        position += writeFully(ZipRecords.localHeader(name, dosTime, crc, size), position);
+        // Nothing goes through the heap: the data is copied from channel to channel
+        source.position(dataOffset);
+        var copied = 0L;
+        while (copied < size) {
+            var transferred = channel.transferFrom(source, position + copied, size - copied);
+            if (transferred <= 0) throw new IOException(String.format("Unexpected end of data in %s", name));
+            copied += transferred;
+        }
+        position += copied;
+        entries.add(new ZipRecords.Entry(name, dosTime, crc, size, offset));
+    }
+
+    // Writes the local header with a blank crc-32 and returns its offset
+    private long startEntry(ZipEntryName name, long dosTime, long size) throws IOException {
+        var offset = position;
+        position += writeFully(ZipRecords.localHeader(name, dosTime, 0, size), position);
+        return offset;
+    }
+
+    private void completeEntry(ZipEntryName name, long dosTime, long crc, long size, long offset) throws IOException {
+        writeFully(ZipRecords.crcAndSizes(crc, size), offset + LOCAL_HEADER_CRC_OFFSET);
+        entries.add(new ZipRecords.Entry(name, dosTime, crc, size, offset));
+    }
+
+    private int writeFully(ByteBuffer src, long at) throws IOException {
+        var written = 0;
+        while (src.hasRemaining()) written += channel.write(src, at + written);
+        return written;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (channel) {
+            writeFully(ZipRecords.centralDirectory(entries, position), position);
+        }
+    }
+
+    private class EntryStream extends OutputStream {
+        private final ZipEntryName name;
+        private final long dosTime;
+        private final long offset;
+        private final CRC32 crc = new CRC32();
+        private long size = 0;
+        private boolean closed = false;
+
+        EntryStream(ZipEntryName name, long dosTime, long offset) {
+            this.name = name;
+            this.dosTime = dosTime;
+            this.offset = offset;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) throw new IOException("Entry already closed");
+            // Free if the caller is already inside a stage for the whole entry
+            Throttle.inCpuStage(() -> crc.update(b, off, len));
+            position += writeFully(ByteBuffer.wrap(b, off, len), position);
+            size += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            if (size >= ZIP32_LIMIT) throw new IOException(String.format("%s is too big to be stored", name));
+            completeEntry(name, dosTime, crc.getValue(), size, offset);
+        }
+    }
+}
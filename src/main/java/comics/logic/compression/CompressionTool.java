@@ -1,10 +1,33 @@
 package comics.logic.compression;
 
 import java.io.File;
+import java.io.IOException;
 
 public interface CompressionTool {
+    /**
+     * Extracts every file of a comic into a directory, keeping the paths it has inside the comic
+     * @param comicFile Existing compressed comic
+     * @param targetDirectory Where the files go
+     * @throws IOException If the comic cannot be read or any entry is not extracted successfully
+     */
+    default void extractFile(final File comicFile, final File targetDirectory) throws IOException {
+        extractFile(comicFile, targetDirectory, false, 1);
+    }
+
+    /**
+     * Extracts every file of a comic into a directory, keeping the paths it has inside the comic
+     * @param comicFile Existing compressed comic
+     * @param targetDirectory Where the files go
+     * @param verify If set, the crc-32 of every file written is checked against the one recorded by the comic
+     * @param threads Threads extracting the entries at once, if the format allows it: zip files and non-solid
+     *                archives are split into that many ranges of entries; solid archives are always extracted in
+     *                order
+     * @throws IOException If the comic cannot be read or any entry is not extracted successfully
+     */
     void extractFile(
         final File comicFile,
-        final File targetDirectory
-    );
+        final File targetDirectory,
+        final boolean verify,
+        final int threads
+    ) throws IOException;
 }
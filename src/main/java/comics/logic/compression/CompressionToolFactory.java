@@ -1,5 +1,6 @@
 package comics.logic.compression;
 
+import java.io.File;
 import java.util.logging.Logger;
 
 import cli.LogUtils;
@@ -7,8 +8,21 @@ import cli.LogUtils;
 public class CompressionToolFactory {
 
     private static final Logger LOGGER = LogUtils.getDefaultLogger();
-    
-    public static CompressionTool getCompressionTool() {
+
+    /**
+     * @param comicFile Comic about to be read
+     * @return The tool to read it with: zip files, whatever their extension, are read without leaving the JVM
+     */
+    public static CompressionTool getCompressionTool(File comicFile) {
+        if (ZipCentralDirectory.isZip(comicFile.toPath())) {
+            LOGGER.finest("Using java.util.zip");
+            return JavaZipService.INSTANCE;
+        }
+        return getNativeTool();
+    }
+
+    // 7-zip, for everything else
+    static CompressionTool getNativeTool() {
         if (SevenZipBindingService.INSTANCE.isInitialized()) {
             LOGGER.finest("Using the 7-zip java binding");
             return SevenZipBindingService.INSTANCE;
@@ -0,0 +1,86 @@
+package comics.logic.compression;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Splits the entries of a comic into contiguous ranges, extracted at once: the first one by the calling thread,
+//  every other one by a thread of a pool shared by every comic
+final class ExtractionRanges {
+
+    @FunctionalInterface
+    interface RangeExtractor {
+        // Extracts the entries from 'from', inclusive, to 'to', exclusive
+        void extract(int from, int to) throws IOException;
+    }
+
+    // Shared by every comic: the threads are created once and reused while extractions keep coming, and go away
+    //  after a minute idle.  Platform threads: the 7-zip binding spends most of the time in native code
+    private static final ExecutorService POOL =
+        Executors.newCachedThreadPool(Thread.ofPlatform().daemon().name("extract-range-", 0).factory());
+
+    private ExtractionRanges() {}
+
+    /**
+     * @param count Entries to be extracted
+     * @param threads Ranges to split them into, at most; everything runs in the calling thread if 1
+     * @param extractor Extracts a range
+     * @throws IOException The first failure of any range, once every range is over
+     */
+    static void extract(int count, int threads, RangeExtractor extractor) throws IOException {
+        var ranges = Math.max(1, Math.min(threads, count));
+        var futures = new ArrayList<Future<Void>>();
+        for (var range = 1; range < ranges; range++) {
+            var from = boundary(count, range, ranges);
+            var to = boundary(count, range + 1, ranges);
+            futures.add(POOL.submit(() -> {
+                extractor.extract(from, to);
+                return null;
+            }));
+        }
+        IOException failure = null;
+        try {
+            // The calling thread takes the first range instead of just waiting
+            extractor.extract(0, boundary(count, 1, ranges));
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            failure = awaitRanges(futures, failure);
+        }
+        if (failure != null) throw failure;
+    }
+
+    private static int boundary(int count, int range, int ranges) {
+        return (int) ((long) count * range / ranges);
+    }
+
+    // Waits for every range, even if interrupted, adding their failures to the first one
+    private static IOException awaitRanges(List<Future<Void>> futures, IOException failure) {
+        var interrupted = false;
+        for (var future: futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    var cause = e.getCause() instanceof IOException ioe ? ioe : new IOException(e.getCause());
+                    if (failure == null) failure = cause;
+                    else failure.addSuppressed(cause);
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            if (failure == null) failure = new InterruptedIOException("Interrupted while extracting");
+        }
+        return failure;
+    }
+}
@@ -0,0 +1,165 @@
+package comics.logic.compression;
+
+import cli.LogUtils;
+import comics.utils.Throttle;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipFile;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+// Extracts zip comics without leaving the JVM: STORED entries are copied through a direct buffer, and DEFLATED
+//  ones inflated through java.util.zip.  Every entry is checked against its crc-32, as 7-zip does.  Names are
+//  CP437 unless the entry says they are UTF-8.  Anything else is left to 7-zip: other methods, encryption, a
+//  central directory that cannot be read or names that are no valid path here
+enum JavaZipService implements CompressionTool {
+
+    INSTANCE;
+
+    private static final Logger LOGGER = LogUtils.getDefaultLogger();
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    @Override
+    public void extractFile(
+        final File comicFile,
+        final File targetDirectory,
+        final boolean verify,
+        final int threads
+    ) throws IOException {
+        try (var channel = FileChannel.open(comicFile.toPath(), READ)) {
+            List<ZipCentralDirectory.Entry> entries;
+            try {
+                entries = ZipCentralDirectory.read(channel).entries().stream().filter(e -> !e.isDirectory()).toList();
+            } catch (IOException | RuntimeException e) {
+                handOver(comicFile, targetDirectory, verify, threads, e.getMessage());
+                return;
+            }
+            if (entries.stream().anyMatch(e -> e.isEncrypted() || (e.method() != STORED && e.method() != DEFLATED))) {
+                handOver(comicFile, targetDirectory, verify, threads, "it needs more than java.util.zip");
+                return;
+            }
+            // Every name is checked before anything is written
+            var root = targetDirectory.toPath().toAbsolutePath().normalize();
+            var targets = new ArrayList<Path>(entries.size());
+            for (var entry: entries) {
+                Path target;
+                try {
+                    target = root.resolve(entry.name()).normalize();
+                } catch (InvalidPathException e) {
+                    handOver(comicFile, targetDirectory, verify, threads, e.getMessage());
+                    return;
+                }
+                if (!target.startsWith(root))
+                    throw new IOException(String.format("%s points outside of %s", entry.name(), targetDirectory));
+                targets.add(target);
+            }
+            // Even with no files in it: an empty comic still leaves its directory behind, as 7-zip would
+            Files.createDirectories(root);
+            // ZipFile can be read from several threads at once, so every range shares the same one
+            var zip = entries.stream().anyMatch(e -> e.method() == DEFLATED) ?
+                new ZipFile(comicFile, ZipEntryName.CP437) :
+                null;
+            try {
+                ExtractionRanges.extract(entries.size(), threads, (from, to) -> {
+                    for (var i = from; i < to; i++) extractEntry(channel, zip, entries.get(i), targets.get(i));
+                });
+            } finally {
+                if (zip != null) zip.close();
+            }
+        }
+    }
+
+    private static void handOver(
+        File comicFile,
+        File targetDirectory,
+        boolean verify,
+        int threads,
+        String reason
+    ) throws IOException {
+        LOGGER.fine(String.format("Handing %s over to 7-zip: %s", comicFile, reason));
+        CompressionToolFactory.getNativeTool().extractFile(comicFile, targetDirectory, verify, threads);
+    }
+
+    private static void extractEntry(
+        FileChannel channel,
+        ZipFile zip,
+        ZipCentralDirectory.Entry entry,
+        Path target
+    ) throws IOException {
+        target.getParent().toFile().mkdirs();
+        long crc;
+        if (entry.method() == STORED) {
+            crc = copyStored(channel, ZipCentralDirectory.dataOffset(channel, entry), entry.size(), target);
+        } else {
+            var zipEntry = zip.getEntry(entry.name());
+            if (zipEntry == null) throw new IOException(String.format("Unable to read %s", entry.name()));
+            try (var is = zip.getInputStream(zipEntry)) {
+                crc = inflate(is, target);
+            }
+        }
+        if (crc != entry.crc())
+            throw new IOException(String.format("Could not extract %s (CRC mismatch)", entry.name()));
+        if (LOGGER.isLoggable(Level.FINEST))
+            LOGGER.finest(String.format("%9X | %10s | %s", crc, entry.size(), entry.name()));
+    }
+
+    // Returns the crc-32 of the contents, computed on their way through the buffer
+    private static long copyStored(FileChannel source, long offset, long size, Path target) throws IOException {
+        try (var out = FileChannel.open(target, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            var crc = new CRC32();
+            var buffer = BUFFER.get();
+            for (var copied = 0L; copied < size; ) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), size - copied));
+                if (source.read(buffer, offset + copied) < 0)
+                    throw new IOException(String.format("Unexpected end of file reading %s", target.getFileName()));
+                buffer.flip();
+                copied += buffer.remaining();
+                // Only the checksum of each chunk is a stage: reading and writing it are not CPU work
+                Throttle.inCpuStage(() -> crc.update(buffer));
+                buffer.flip();
+                while (buffer.hasRemaining()) out.write(buffer);
+            }
+            return crc.getValue();
+        }
+    }
+
+    // Inflating and checksumming each chunk is a stage; writing it to the target is not
+    private static long inflate(InputStream is, Path target) throws IOException {
+        var crc = new CRC32();
+        var bytes = new byte[BUFFER_SIZE];
+        var buffer = BUFFER.get();
+        try (var out = FileChannel.open(target, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            while (true) {
+                var read = Throttle.inCpuStage(() -> {
+                    var inflated = is.read(bytes);
+                    if (inflated > 0) crc.update(bytes, 0, inflated);
+                    return inflated;
+                });
+                if (read < 0) return crc.getValue();
+                buffer.clear();
+                buffer.put(bytes, 0, read);
+                buffer.flip();
+                while (buffer.hasRemaining()) out.write(buffer);
+            }
+        }
+    }
+}
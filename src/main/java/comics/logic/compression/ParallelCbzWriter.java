@@ -0,0 +1,180 @@
+package comics.logic.compression;
+
+import comics.utils.Throttle;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+import static comics.logic.compression.ChannelCbzWriter.BUFFER_SIZE;
+import static comics.logic.compression.ZipRecords.LOCAL_HEADER_CRC_OFFSET;
+import static comics.logic.compression.ZipRecords.ZIP32_LIMIT;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+// Entries are STORED, so the size of every file fixes where the next local header goes.  The offsets are
+//  planned as entries are added, and several threads copy the data into their own region of the file with
+//  positional writes, writing the local header once its crc-32 is known.  The central directory is written at
+//  the end, once every entry is complete.  The result is byte-identical to the one of ChannelCbzWriter.
+class ParallelCbzWriter implements CbzWriter {
+
+    private final FileChannel channel;
+    private final ExecutorService pool;
+    private final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+    // In the same order the entries appear in the file
+    private final List<Future<ZipRecords.Entry>> entries = new ArrayList<>();
+    // Position of the next local header
+    private long position = 0;
+
+    /**
+     * @param targetFile Comic file to be created; it must not exist
+     * @param pool Threads copying the data, shared with every other writer running at the same time
+     */
+    ParallelCbzWriter(Path targetFile, ExecutorService pool) throws IOException {
+        channel = FileChannel.open(targetFile, CREATE_NEW, WRITE);
+        this.pool = pool;
+    }
+
+    @Override
+    public void addFile(String entryName, Path source, BasicFileAttributes attributes) throws IOException {
+        var size = attributes.size();
+        if (size >= ZIP32_LIMIT) throw new IOException(String.format("%s is too big to be stored", source));
+        var name = ZipRecords.encodeName(entryName);
+        var dosTime = ZipRecords.dosTime(attributes.lastModifiedTime());
+        var offset = reserve(name, size);
+        entries.add(pool.submit(() -> {
+            try (var in = FileChannel.open(source, READ)) {
+                var crc = copy(in, 0, offset + ZipRecords.localHeaderSize(name), size);
+                if (in.size() != size) throw new IOException(String.format("%s changed while being stored", source));
+                writeFully(ZipRecords.localHeader(name, dosTime, crc, size), offset);
+                return new ZipRecords.Entry(name, dosTime, crc, size, offset);
+            }
+        }));
+    }
+
+    @Override
+    public void transferEntry(
+        ZipEntryName name,
+        FileTime lastModified,
+        long crc,
+        long size,
+        FileChannel source,
+        long dataOffset
+    ) throws IOException {
+        if (size >= ZIP32_LIMIT) throw new IOException(String.format("%s is too big to be stored", name));
+        var dosTime = ZipRecords.dosTime(lastModified);
+        var offset = reserve(name, size);
+        // Positional reads do not move the position of the source, so its channel can be shared between threads
+        entries.add(pool.submit(() -> {
+            // Computed on the way anyway: a corrupt entry does not make it into the comic
+            if (copy(source, dataOffset, offset + ZipRecords.localHeaderSize(name), size) != crc)
+                throw new IOException(String.format("Could not copy %s (CRC mismatch)", name));
+            writeFully(ZipRecords.localHeader(name, dosTime, crc, size), offset);
+            return new ZipRecords.Entry(name, dosTime, crc, size, offset);
+        }));
+    }
+
+    // The size of a streamed entry is unknown until it is complete: it is written by the caller thread right
+    //  after the regions already reserved, and nothing else can be planned until it is closed
+    @Override
+    public OutputStream newEntry(String entryName, FileTime lastModified) throws IOException {
+        var name = ZipRecords.encodeName(entryName);
+        var dosTime = ZipRecords.dosTime(
+            lastModified == null ? FileTime.fromMillis(System.currentTimeMillis()) : lastModified
+        );
+        var offset = position;
+        position += writeFully(ZipRecords.localHeader(name, dosTime, 0, 0), offset);
+        return new OutputStream() {
+            private final CRC32 crc = new CRC32();
+            private long size = 0;
+            private boolean closed = false;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (closed) throw new IOException("Entry already closed");
+                // Free if the caller is already inside a stage for the whole entry
+                Throttle.inCpuStage(() -> crc.update(b, off, len));
+                position += writeFully(ByteBuffer.wrap(b, off, len), position);
+                size += len;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) return;
+                closed = true;
+                if (size >= ZIP32_LIMIT)
+                    throw new IOException(String.format("%s is too big to be stored", name));
+                writeFully(ZipRecords.crcAndSizes(crc.getValue(), size), offset + LOCAL_HEADER_CRC_OFFSET);
+                entries.add(CompletableFuture.completedFuture(
+                    new ZipRecords.Entry(name, dosTime, crc.getValue(), size, offset)
+                ));
+            }
+        };
+    }
+
+    // Plans the region of a new entry and returns the offset of its local header
+    private long reserve(ZipEntryName name, long size) {
+        var offset = position;
+        position += ZipRecords.localHeaderSize(name) + size;
+        return offset;
+    }
+
+    // Copies a region of the source into the comic, returning its crc-32
+    private long copy(FileChannel source, long from, long to, long size) throws IOException {
+        var buffer = buffers.get();
+        var crc = new CRC32();
+        var copied = 0L;
+        while (copied < size) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), size - copied));
+            if (source.read(buffer, from + copied) < 0) throw new IOException("Unexpected end of data");
+            buffer.flip();
+            // Only the checksum of each chunk is a stage: reading and writing it are not CPU work
+            Throttle.inCpuStage(() -> crc.update(buffer));
+            buffer.flip();
+            copied += writeFully(buffer, to + copied);
+        }
+        return crc.getValue();
+    }
+
+    private int writeFully(ByteBuffer src, long at) throws IOException {
+        var written = 0;
+        while (src.hasRemaining()) written += channel.write(src, at + written);
+        return written;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (channel) {
+            var completed = new ArrayList<ZipRecords.Entry>(entries.size());
+            for (var entry: entries) completed.add(entry.get());
+            writeFully(ZipRecords.centralDirectory(completed, position), position);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioe) throw ioe;
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } finally {
+            // The pool is not ours: only the copies of this comic still waiting are dropped.  Interrupting the
+            //  running ones would close the channel of the source, which may well be shared
+            for (var entry: entries) entry.cancel(false);
+        }
+    }
+}
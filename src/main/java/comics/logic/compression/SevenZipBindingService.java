@@ -1,23 +1,40 @@
 package comics.logic.compression;
 
 import cli.LogUtils;
+import comics.utils.Throttle;
 import net.sf.sevenzipjbinding.*;
 import net.sf.sevenzipjbinding.impl.RandomAccessFileInStream;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
 
-enum SevenZipBindingService implements CompressionTool {
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+enum SevenZipBindingService implements StreamingCompressionTool {
 
     INSTANCE;
 
     private final Logger LOGGER = LogUtils.getDefaultLogger();
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+    // Reused by every entry extracted in the same thread
+    private static final ThreadLocal<ByteBuffer> WRITE_BUFFER =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE));
     private boolean initialized = false;
 
     SevenZipBindingService() {
@@ -36,19 +53,23 @@ enum SevenZipBindingService implements CompressionTool {
 
     public boolean isInitialized() { return initialized; }
 
+    @Override
     public void extractFile(
         final File comicFile,
-        final File targetDirectory
-    ) {
+        final File targetDirectory,
+        final boolean verify,
+        final int threads
+    ) throws IOException {
         try (
-            var randomAccessFile = new RandomAccessFile(comicFile, "r");
+            // Every range of entries reads through a stream of its own, all of them sharing the channel
+            var channel = FileChannel.open(comicFile.toPath(), READ);
             var inArchive = SevenZip.openInArchive(
                 null, // autodetect archive type
-                new RandomAccessFileInStream(randomAccessFile)
+                new ChannelInStream(channel)
             )
         ) {
 
-            LOGGER.finest("   Hash   |    Size    | Filename");
+            LOGGER.finest("   CRC    |    Size    | Filename");
             LOGGER.finest("----------+------------+---------");
 
             int count = inArchive.getNumberOfItems();
@@ -63,35 +84,227 @@ enum SevenZipBindingService implements CompressionTool {
             for (var integer : itemsToExtract) {
                 items[i++] = integer;
             }
-            inArchive.extract(
-                items,
-                false, // Non-test mode
-                new ExtractCallback(targetDirectory, inArchive)
-            );
-        } catch (Exception e) {
-            LOGGER.severe("Error occurs: " + e);
+            // Every entry of a solid archive depends on the ones before it; if in doubt, take it as solid
+            var randomAccess = Boolean.FALSE.equals(inArchive.getArchiveProperty(PropID.SOLID));
+            var format = inArchive.getArchiveFormat();
+            ExtractionRanges.extract(items.length, randomAccess ? threads : 1, (from, to) -> {
+                var range = Arrays.copyOfRange(items, from, to);
+                if (from == 0 && to == items.length) extractItems(inArchive, range, targetDirectory, verify);
+                else try (var rangeArchive = SevenZip.openInArchive(format, new ChannelInStream(channel))) {
+                    extractItems(rangeArchive, range, targetDirectory, verify);
+                } catch (SevenZipException e) {
+                    throw wrap(comicFile, e);
+                }
+            });
+        } catch (SevenZipException e) {
+            throw wrap(comicFile, e);
+        }
+    }
+
+    private void extractItems(
+        IInArchive inArchive,
+        int[] items,
+        File targetDirectory,
+        boolean verify
+    ) throws IOException {
+        var callback = new ExtractCallback(targetDirectory, inArchive, verify);
+        try {
+            try {
+                inArchive.extract(
+                    items,
+                    false, // Non-test mode
+                    callback
+                );
+            } finally {
+                // An aborted extraction never gets to the result of its last entry
+                callback.closeChannel();
+            }
+        } catch (SevenZipException e) {
+            if (e.getCause() instanceof IOException ioe) throw ioe;
+            throw new IOException(e.getMessage(), e);
+        }
+        callback.checkResult();
+    }
+
+    // Failures writing the files travel wrapped inside the 7-zip exceptions
+    private static IOException wrap(File comicFile, SevenZipException e) {
+        if (e.getCause() instanceof IOException ioe) return ioe;
+        return new IOException(String.format("Unable to extract %s", comicFile), e);
+    }
+
+    @Override
+    public List<ArchiveEntry> listEntries(final File comicFile) throws IOException {
+        try (
+            var randomAccessFile = new RandomAccessFile(comicFile, "r");
+            var inArchive = SevenZip.openInArchive(null, new RandomAccessFileInStream(randomAccessFile))
+        ) {
+            var entries = new ArrayList<ArchiveEntry>();
+            for (int i = 0; i < inArchive.getNumberOfItems(); i++) {
+                if (!(Boolean) inArchive.getProperty(i, PropID.IS_FOLDER)) entries.add(toEntry(inArchive, i));
+            }
+            return entries;
+        } catch (SevenZipException e) {
+            throw new IOException(String.format("Unable to read %s", comicFile), e);
         }
     }
 
+    @Override
+    public void streamEntries(
+        final File comicFile,
+        final Set<String> paths,
+        final boolean verify,
+        final EntryHandler handler
+    ) throws IOException {
+        try (
+            var randomAccessFile = new RandomAccessFile(comicFile, "r");
+            var inArchive = SevenZip.openInArchive(null, new RandomAccessFileInStream(randomAccessFile))
+        ) {
+            var items = new ArrayList<Integer>();
+            for (int i = 0; i < inArchive.getNumberOfItems(); i++) {
+                if (!(Boolean) inArchive.getProperty(i, PropID.IS_FOLDER)
+                        && paths.contains(normalizePath(inArchive.getProperty(i, PropID.PATH).toString()))) {
+                    items.add(i);
+                }
+            }
+            var callback = new StreamingCallback(inArchive, handler, verify);
+            try {
+                inArchive.extract(items.stream().mapToInt(Integer::intValue).toArray(), false, callback);
+            } finally {
+                callback.closeStage();
+            }
+            callback.checkResult();
+        } catch (SevenZipException e) {
+            // Failures raised by the handler travel wrapped inside the 7-zip exceptions
+            if (e.getCause() instanceof IOException ioe) throw ioe;
+            throw new IOException(String.format("Unable to read %s", comicFile), e);
+        }
+    }
+
+    private static String normalizePath(String path) {
+        return path.replace('\\', '/');
+    }
+
+    private static ArchiveEntry toEntry(IInArchive inArchive, int index) throws SevenZipException {
+        var size = (Long) inArchive.getProperty(index, PropID.SIZE);
+        var lastModified = (Date) inArchive.getProperty(index, PropID.LAST_MODIFICATION_TIME);
+        return new ArchiveEntry(
+            normalizePath(inArchive.getProperty(index, PropID.PATH).toString()),
+            size == null ? 0 : size,
+            lastModified == null ? null : FileTime.fromMillis(lastModified.getTime())
+        );
+    }
+
+    // Hands the contents of every entry over to the handler instead of writing them into a directory
+    private class StreamingCallback implements IArchiveExtractCallback {
+        private final IInArchive inArchive;
+        private final EntryHandler handler;
+        private final boolean verify;
+        private final CRC32 crc = new CRC32();
+        private int index;
+        private OutputStream current = null;
+        private ArchiveEntry currentEntry = null;
+        private ArchiveEntry failedEntry = null;
+        // Decompressing and writing an entry is a single stage, which the checksum of the writer joins for free
+        private Throttle.Stage stage = null;
+
+        StreamingCallback(IInArchive inArchive, EntryHandler handler, boolean verify) {
+            this.inArchive = inArchive;
+            this.handler = handler;
+            this.verify = verify;
+        }
+
+        public ISequentialOutStream getStream(
+            int index,
+            ExtractAskMode extractAskMode
+        ) throws SevenZipException {
+            if (extractAskMode != ExtractAskMode.EXTRACT) {
+                return null;
+            }
+            this.index = index;
+            currentEntry = toEntry(inArchive, index);
+            crc.reset();
+            try {
+                current = handler.open(currentEntry);
+                closeStage();
+                stage = Throttle.cpuStage();
+            } catch (IOException ioe) { throw new SevenZipException(ioe.getMessage(), ioe); }
+            final var os = current;
+            return data -> {
+                try {
+                    if (verify) crc.update(data);
+                    os.write(data);
+                } catch (IOException ioe) { throw new SevenZipException(ioe.getMessage(), ioe); }
+                return data.length;
+            };
+        }
+
+        public void prepareOperation(ExtractAskMode extractAskMode) throws SevenZipException {
+        }
+
+        public void setOperationResult(ExtractOperationResult extractOperationResult) throws SevenZipException {
+            if (current == null) return;
+            try {
+                current.close();
+            } catch (IOException ioe) {
+                throw new SevenZipException(ioe.getMessage(), ioe);
+            } finally {
+                closeStage();
+            }
+            current = null;
+            if (extractOperationResult != ExtractOperationResult.OK && failedEntry == null) {
+                LOGGER.severe(String.format("Extraction error (%s) in %s", extractOperationResult, currentEntry.path()));
+                failedEntry = currentEntry;
+            } else if (verify) {
+                // The archive may not record it at all
+                var expected = (Integer) inArchive.getProperty(index, PropID.CRC);
+                if (expected != null && Integer.toUnsignedLong(expected) != crc.getValue() && failedEntry == null) {
+                    LOGGER.severe(String.format("CRC mismatch in %s", currentEntry.path()));
+                    failedEntry = currentEntry;
+                }
+            }
+        }
+
+        void checkResult() throws IOException {
+            if (failedEntry != null) throw new IOException(String.format("Could not extract %s", failedEntry.path()));
+        }
+
+        void closeStage() {
+            if (stage == null) return;
+            stage.close();
+            stage = null;
+        }
+
+        public void setCompleted(long completeValue) throws SevenZipException {
+        }
+
+        public void setTotal(long total) throws SevenZipException {
+        }
+    }
+
+    // Writes every entry into its own file under the target directory, through a single channel per entry, and
+    //  remembers the first one that could not be extracted
     private class ExtractCallback implements IArchiveExtractCallback {
-        private int hash = 0;
-        private int size = 0;
+        private final CRC32 crc = new CRC32();
+        private long size = 0;
         private int index;
+        private FileChannel channel = null;
+        // Decompressing an entry, and checksumming it when asked to, is a single stage, as when streaming
+        private Throttle.Stage stage = null;
+        private String failure = null;
         private final IInArchive inArchive;
         private final File targetDirectory;
+        private final boolean verify;
 
         private File prepareTarget(File root, String path) {
             var targetFile = new File(root, path);
-            try {
-                targetFile.getParentFile().mkdirs();
-                targetFile.createNewFile();
-            } catch (IOException ioe) { LOGGER.severe(ioe.getMessage()); }
+            targetFile.getParentFile().mkdirs();
             return targetFile;
         }
 
-        public ExtractCallback(File targetDirectory, IInArchive inArchive) {
+        public ExtractCallback(File targetDirectory, IInArchive inArchive, boolean verify) {
             this.inArchive = inArchive;
             this.targetDirectory = targetDirectory;
+            this.verify = verify;
         }
 
         public ISequentialOutStream getStream(
@@ -105,13 +318,20 @@ enum SevenZipBindingService implements CompressionTool {
 
             final var path = inArchive.getProperty(index, PropID.PATH).toString();
             final var targetFile = prepareTarget(targetDirectory, path);
+            closeChannel();
+            // Only worth computing if it is going to be checked or somebody is going to read it
+            final var checksum = verify || LOGGER.isLoggable(Level.FINEST);
+            try {
+                channel = FileChannel.open(targetFile.toPath(), CREATE, WRITE, TRUNCATE_EXISTING);
+                stage = Throttle.cpuStage();
+            } catch (IOException ioe) { throw new SevenZipException(ioe.getMessage(), ioe); }
+            final var out = channel;
             return data -> {
-                hash ^= Arrays.hashCode(data);
                 size += data.length;
-                // Write the file in the expected path
-                try (var os = new FileOutputStream(targetFile, true)) {
-                    os.write(data);
-                } catch (IOException ioe) { LOGGER.severe(ioe.getMessage()); }
+                try {
+                    if (checksum) crc.update(data);
+                    write(out, data);
+                } catch (IOException ioe) { throw new SevenZipException(ioe.getMessage(), ioe); }
                 return data.length; // Return amount of proceed data
             };
         }
@@ -120,20 +340,23 @@ enum SevenZipBindingService implements CompressionTool {
         }
 
         public void setOperationResult(ExtractOperationResult extractOperationResult) throws SevenZipException {
+            closeChannel();
+            var path = inArchive.getProperty(index, PropID.PATH);
             if (extractOperationResult != ExtractOperationResult.OK) {
-                LOGGER.severe("Extraction error");
+                LOGGER.severe(String.format("Extraction error (%s) in %s", extractOperationResult, path));
+                if (failure == null) failure = String.format("Could not extract %s (%s)", path, extractOperationResult);
             } else {
-                LOGGER.finest(
-                    String.format(
-                        "%9X | %10s | %s",
-                        hash,
-                        size,
-                        inArchive.getProperty(index, PropID.PATH)
-                    )
-                );
-                hash = 0;
-                size = 0;
+                // The archive may not record it at all
+                var expected = verify ? (Integer) inArchive.getProperty(index, PropID.CRC) : null;
+                if (expected != null && Integer.toUnsignedLong(expected) != crc.getValue()) {
+                    LOGGER.severe(String.format("CRC mismatch in %s", path));
+                    if (failure == null) failure = String.format("Could not extract %s (CRC mismatch)", path);
+                }
+                if (LOGGER.isLoggable(Level.FINEST))
+                    LOGGER.finest(String.format("%9X | %10s | %s", crc.getValue(), size, path));
             }
+            crc.reset();
+            size = 0;
         }
 
         public void setCompleted(long completeValue) throws SevenZipException {
@@ -142,5 +365,74 @@ enum SevenZipBindingService implements CompressionTool {
         public void setTotal(long total) throws SevenZipException {
         }
 
+        void checkResult() throws IOException {
+            if (failure != null) throw new IOException(failure);
+        }
+
+        private void closeChannel() throws SevenZipException {
+            if (stage != null) {
+                stage.close();
+                stage = null;
+            }
+            if (channel == null) return;
+            try {
+                channel.close();
+            } catch (IOException ioe) {
+                throw new SevenZipException(ioe.getMessage(), ioe);
+            } finally {
+                channel = null;
+            }
+        }
+    }
+
+    // Read-only stream with a position of its own over a channel that may be shared by several of them
+    private static class ChannelInStream implements IInStream {
+        private final FileChannel channel;
+        private long position = 0;
+
+        ChannelInStream(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public long seek(long offset, int seekOrigin) throws SevenZipException {
+            try {
+                position = switch (seekOrigin) {
+                    case SEEK_SET -> offset;
+                    case SEEK_CUR -> position + offset;
+                    case SEEK_END -> channel.size() + offset;
+                    default -> throw new SevenZipException("Unknown seek origin " + seekOrigin);
+                };
+            } catch (IOException ioe) { throw new SevenZipException(ioe.getMessage(), ioe); }
+            return position;
+        }
+
+        @Override
+        public int read(byte[] data) throws SevenZipException {
+            try {
+                var read = channel.read(ByteBuffer.wrap(data), position);
+                // 7-zip expects 0, not -1, at the end of the stream
+                if (read <= 0) return 0;
+                position += read;
+                return read;
+            } catch (IOException ioe) { throw new SevenZipException(ioe.getMessage(), ioe); }
+        }
+
+        // The channel belongs to whoever opened it
+        @Override
+        public void close() {
+        }
+    }
+
+    // 7-zip hands the data over in heap arrays; copying them into a direct buffer saves the channel doing it
+    //  into a temporary one of its own on every write
+    private static void write(FileChannel channel, byte[] data) throws IOException {
+        var buffer = WRITE_BUFFER.get();
+        for (var offset = 0; offset < data.length; offset += buffer.capacity()) {
+            buffer.clear();
+            buffer.put(data, offset, Math.min(buffer.capacity(), data.length - offset));
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+        }
     }
 }
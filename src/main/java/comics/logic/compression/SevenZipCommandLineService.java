@@ -1,13 +1,15 @@
 package comics.logic.compression;
 
 import java.io.File;
+import java.io.IOException;
 
-import cli.LogUtils;
 import shell.CommandLauncher;
 
 class SevenZipCommandLineService implements CompressionTool {
+    // 7z checks the crc-32 of every file on its own, and exits with an error if any of them does not match.  It
+    //  decides on its own threads, too
     @Override
-    public void extractFile(File comicFile, File targetDirectory) {
+    public void extractFile(File comicFile, File targetDirectory, boolean verify, int threads) throws IOException {
         try {
             var result = CommandLauncher.builder().
                 cwd(comicFile.getParentFile()).
@@ -18,11 +20,13 @@ class SevenZipCommandLineService implements CompressionTool {
                 parameter("*").
                 parameter("-r").
                 parameter("-spf").build().launch();
-            if (result.getExitCode() != 0) throw new Exception(
+            if (result.getExitCode() != 0) throw new IOException(
                 String.format("Error trying to decompress %s", comicFile.getAbsolutePath())
             );
+        } catch (IOException e) {
+            throw e;
         } catch (Exception e) {
-            LogUtils.getDefaultLogger().severe("Error occurs: " + e);
+            throw new IOException(String.format("Error trying to decompress %s", comicFile.getAbsolutePath()), e);
         }
     }
 }
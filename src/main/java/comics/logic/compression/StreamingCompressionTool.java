@@ -0,0 +1,40 @@
+package comics.logic.compression;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Set;
+
+// Tools able to read the entries of a comic without extracting them into a directory
+public interface StreamingCompressionTool extends CompressionTool {
+
+    @FunctionalInterface
+    interface EntryHandler {
+        // Stream the contents of the entry will be written to; it is closed once the entry is complete
+        OutputStream open(ArchiveEntry entry) throws IOException;
+    }
+
+    /**
+     * Lists the files stored in a comic, skipping directories
+     * @param comicFile Existing compressed comic
+     * @return Entries in the same order they are stored in the archive
+     * @throws IOException If the comic cannot be read
+     */
+    List<ArchiveEntry> listEntries(final File comicFile) throws IOException;
+
+    /**
+     * Reads the selected entries of a comic, in archive order, handing their contents over to the handler
+     * @param comicFile Existing compressed comic
+     * @param paths Paths, as returned by listEntries, of the entries to be read
+     * @param verify If set, the crc-32 of every entry handed over is checked against the one recorded by the comic
+     * @param handler Provides the destination of every entry
+     * @throws IOException If the comic cannot be read or any entry is not extracted successfully
+     */
+    void streamEntries(
+        final File comicFile,
+        final Set<String> paths,
+        final boolean verify,
+        final EntryHandler handler
+    ) throws IOException;
+}
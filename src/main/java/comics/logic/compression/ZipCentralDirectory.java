@@ -0,0 +1,167 @@
+package comics.logic.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static comics.logic.compression.ZipRecords.CENTRAL_HEADER_SIGNATURE;
+import static comics.logic.compression.ZipRecords.END_OF_CENTRAL_DIRECTORY_SIGNATURE;
+import static comics.logic.compression.ZipRecords.LOCAL_HEADER_SIGNATURE;
+import static comics.logic.compression.ZipRecords.LOCAL_HEADER_SIZE;
+import static comics.logic.compression.ZipRecords.UTF8_FLAG;
+import static comics.logic.compression.ZipRecords.ZIP32_ENTRIES_LIMIT;
+import static comics.logic.compression.ZipRecords.ZIP32_LIMIT;
+import static comics.logic.compression.ZipRecords.ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE;
+import static comics.logic.compression.ZipRecords.ZIP64_LOCATOR_SIGNATURE;
+import static java.nio.file.StandardOpenOption.READ;
+
+// Minimal reader of the central directory of a zip file: just what is needed to copy entries as they are
+final class ZipCentralDirectory {
+
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int ENCRYPTED_FLAG = 0x0001;
+
+    record Entry(
+        ZipEntryName encodedName,
+        int flags,
+        int method,
+        long dosTime,
+        long crc,
+        long compressedSize,
+        long size,
+        long localHeaderOffset
+    ) {
+        String name() { return encodedName.name(); }
+        boolean isDirectory() { return name().endsWith("/"); }
+        boolean isEncrypted() { return (flags & ENCRYPTED_FLAG) != 0; }
+    }
+
+    private final List<Entry> entries;
+    private final long offset;
+    private final long size;
+
+    private ZipCentralDirectory(List<Entry> entries, long offset, long size) {
+        this.entries = entries;
+        this.offset = offset;
+        this.size = size;
+    }
+
+    List<Entry> entries() { return entries; }
+
+    long offset() { return offset; }
+
+    long size() { return size; }
+
+    // Checks the signature at the beginning of the file instead of trusting its extension
+    static boolean isZip(Path file) {
+        try (var channel = FileChannel.open(file, READ)) {
+            var buffer = allocate(4);
+            channel.read(buffer, 0);
+            if (buffer.position() < 4) return false;
+            var signature = buffer.flip().getInt();
+            return signature == LOCAL_HEADER_SIGNATURE || signature == END_OF_CENTRAL_DIRECTORY_SIGNATURE;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    static ZipCentralDirectory read(FileChannel channel) throws IOException {
+        var fileSize = channel.size();
+        var tailSize = (int) Math.min(fileSize, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE);
+        var tail = readFully(channel, fileSize - tailSize, tailSize);
+        var eocd = -1;
+        for (var i = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0 && eocd < 0; i--) {
+            if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) eocd = i;
+        }
+        if (eocd < 0) throw new IOException("End of central directory not found");
+
+        long count = Short.toUnsignedInt(tail.getShort(eocd + 10));
+        long cdSize = Integer.toUnsignedLong(tail.getInt(eocd + 12));
+        long cdOffset = Integer.toUnsignedLong(tail.getInt(eocd + 16));
+        if (count == ZIP32_ENTRIES_LIMIT || cdSize == ZIP32_LIMIT || cdOffset == ZIP32_LIMIT) {
+            var locatorPosition = fileSize - tailSize + eocd - ZIP64_LOCATOR_SIZE;
+            var locator = readFully(channel, locatorPosition, ZIP64_LOCATOR_SIZE);
+            if (locator.getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+                var zip64End = readFully(channel, locator.getLong(8), 56);
+                if (zip64End.getInt(0) != ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE)
+                    throw new IOException("Corrupt zip64 end of central directory");
+                count = zip64End.getLong(32);
+                cdSize = zip64End.getLong(40);
+                cdOffset = zip64End.getLong(48);
+            }
+        }
+        if (cdOffset + cdSize > fileSize) throw new IOException("Central directory out of bounds");
+
+        var cd = readFully(channel, cdOffset, Math.toIntExact(cdSize));
+        var entries = new ArrayList<Entry>();
+        for (var i = 0L; i < count; i++) {
+            if (cd.getInt() != CENTRAL_HEADER_SIGNATURE) throw new IOException("Corrupt central directory");
+            cd.position(cd.position() + 4); // versions
+            var flags = Short.toUnsignedInt(cd.getShort());
+            var method = Short.toUnsignedInt(cd.getShort());
+            var dosTime = Integer.toUnsignedLong(cd.getInt());
+            var crc = Integer.toUnsignedLong(cd.getInt());
+            var compressedSize = Integer.toUnsignedLong(cd.getInt());
+            var size = Integer.toUnsignedLong(cd.getInt());
+            var nameLength = Short.toUnsignedInt(cd.getShort());
+            var extraLength = Short.toUnsignedInt(cd.getShort());
+            var commentLength = Short.toUnsignedInt(cd.getShort());
+            cd.position(cd.position() + 8); // disk number, attributes
+            var localHeaderOffset = Integer.toUnsignedLong(cd.getInt());
+            var name = new byte[nameLength];
+            cd.get(name);
+            var extraEnd = cd.position() + extraLength;
+            // zip64 extended information: only the fields overflowing in the header are present, in this order
+            while (cd.position() + 4 <= extraEnd) {
+                var id = Short.toUnsignedInt(cd.getShort());
+                var length = Short.toUnsignedInt(cd.getShort());
+                var next = cd.position() + length;
+                if (id == 0x0001) {
+                    if (size == ZIP32_LIMIT) size = cd.getLong();
+                    if (compressedSize == ZIP32_LIMIT) compressedSize = cd.getLong();
+                    if (localHeaderOffset == ZIP32_LIMIT) localHeaderOffset = cd.getLong();
+                }
+                cd.position(next);
+            }
+            cd.position(extraEnd + commentLength);
+            entries.add(new Entry(
+                ZipEntryName.decode(name, (flags & UTF8_FLAG) != 0),
+                flags,
+                method,
+                dosTime,
+                crc,
+                compressedSize,
+                size,
+                localHeaderOffset
+            ));
+        }
+        return new ZipCentralDirectory(entries, cdOffset, cdSize);
+    }
+
+    // Position where the data of the entry starts, right after its local header
+    static long dataOffset(FileChannel channel, Entry entry) throws IOException {
+        var header = readFully(channel, entry.localHeaderOffset(), LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE)
+            throw new IOException(String.format("Corrupt local header for %s", entry.name()));
+        return entry.localHeaderOffset() + LOCAL_HEADER_SIZE
+            + Short.toUnsignedInt(header.getShort(26)) + Short.toUnsignedInt(header.getShort(28));
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        var buffer = allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) throw new IOException("Unexpected end of file");
+        }
+        return buffer.flip();
+    }
+
+    private static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,51 @@
+package comics.logic.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Name of an entry as it is written in a zip file.  The bytes are UTF-8 if the language encoding flag is set,
+ * and CP437 otherwise, as the older Windows tools still write them; an entry copied from another zip file
+ * keeps the very same bytes it had there
+ * @param name Decoded name, with '/' as separator
+ * @param bytes Name as written in the file
+ * @param utf8 Whether the bytes are UTF-8
+ */
+public record ZipEntryName(String name, byte[] bytes, boolean utf8) {
+
+    static final Charset CP437 = Charset.forName("IBM437");
+
+    static ZipEntryName of(String name) {
+        return new ZipEntryName(name, name.getBytes(UTF_8), true);
+    }
+
+    /**
+     * @param bytes Name as written in a zip file
+     * @param utf8 Whether the language encoding flag of the entry is set
+     * @return The name, decoded
+     * @throws IOException If the entry claims to be UTF-8 and it is not
+     */
+    static ZipEntryName decode(byte[] bytes, boolean utf8) throws IOException {
+        if (!utf8) return new ZipEntryName(new String(bytes, CP437), bytes, false);
+        try {
+            var name = UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT)
+                .decode(ByteBuffer.wrap(bytes))
+                .toString();
+            return new ZipEntryName(name, bytes, true);
+        } catch (CharacterCodingException e) {
+            throw new IOException("Entry name is not valid UTF-8", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,42 @@
+package comics.logic.compression;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+// Content fingerprint of a zip file that does not need to read the contents: the central directory records the
+//  name, size and crc-32 of every entry, so a hash of it (and of the records following it) identifies the comic
+public final class ZipFingerprint {
+
+    private ZipFingerprint() { }
+
+    /**
+     * @param zipFile Existing zip file
+     * @return Hex encoded SHA-256 of everything from the start of the central directory to the end of the file
+     * @throws IOException If the file cannot be read or it is not a zip file
+     */
+    public static String of(File zipFile) throws IOException {
+        try (var channel = FileChannel.open(zipFile.toPath(), READ)) {
+            var directory = ZipCentralDirectory.read(channel);
+            var digest = MessageDigest.getInstance("SHA-256");
+            var buffer = ByteBuffer.allocate(64 * 1024);
+            var position = directory.offset();
+            while (position < channel.size()) {
+                buffer.clear();
+                var read = channel.read(buffer, position);
+                if (read < 0) break;
+                digest.update(buffer.flip());
+                position += read;
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+}
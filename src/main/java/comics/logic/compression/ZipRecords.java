@@ -0,0 +1,167 @@
+package comics.logic.compression;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
+
+// Binary layout of the zip records written by the channel based writers (STORED entries only).
+// See https://pkware.cachefly.net/webdocs/casestudies/APPNOTE.TXT
+final class ZipRecords {
+
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06064b50;
+    static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+    static final int LOCAL_HEADER_SIZE = 30;
+    // Offset of the crc-32 field inside the local header; compressed and uncompressed sizes follow it
+    static final int LOCAL_HEADER_CRC_OFFSET = 14;
+    static final long ZIP32_LIMIT = 0xFFFFFFFFL;
+    static final int ZIP32_ENTRIES_LIMIT = 0xFFFF;
+
+    static final int UTF8_FLAG = 0x0800;
+    private static final int STORED = 0;
+    private static final int VERSION_STORED = 10;
+    private static final int VERSION_ZIP64 = 45;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long DOS_TIME_MIN = (1 << 21) | (1 << 16);
+
+    // Everything the central directory needs to know about an entry already written
+    record Entry(ZipEntryName name, long dosTime, long crc, long size, long offset) { }
+
+    private ZipRecords() { }
+
+    static ZipEntryName encodeName(String entryName) {
+        return ZipEntryName.of(entryName);
+    }
+
+    static long dosTime(FileTime time) {
+        var ldt = LocalDateTime.ofInstant(time.toInstant(), ZoneId.systemDefault());
+        if (ldt.getYear() < 1980) return DOS_TIME_MIN;
+        return ((ldt.getYear() - 1980L) << 25
+            | (long) ldt.getMonthValue() << 21
+            | (long) ldt.getDayOfMonth() << 16
+            | (long) ldt.getHour() << 11
+            | (long) ldt.getMinute() << 5
+            | (long) ldt.getSecond() >> 1) & ZIP32_LIMIT;
+    }
+
+    static FileTime fromDosTime(long dosTime) {
+        var ldt = LocalDateTime.of(
+            (int) ((dosTime >> 25) & 0x7f) + 1980,
+            (int) Math.max(1, Math.min(12, (dosTime >> 21) & 0x0f)),
+            (int) Math.max(1, (dosTime >> 16) & 0x1f),
+            (int) Math.min(23, (dosTime >> 11) & 0x1f),
+            (int) Math.min(59, (dosTime >> 5) & 0x3f),
+            (int) Math.min(59, (dosTime << 1) & 0x3e)
+        );
+        return FileTime.from(ldt.atZone(ZoneId.systemDefault()).toInstant());
+    }
+
+    static int localHeaderSize(ZipEntryName name) {
+        return LOCAL_HEADER_SIZE + name.bytes().length;
+    }
+
+    // The language encoding flag tells readers whether the name is UTF-8 or CP437
+    private static int flags(ZipEntryName name) {
+        return name.utf8() ? UTF8_FLAG : 0;
+    }
+
+    static ByteBuffer localHeader(ZipEntryName name, long dosTime, long crc, long size) {
+        var buffer = allocate(localHeaderSize(name));
+        buffer.putInt(LOCAL_HEADER_SIGNATURE);
+        buffer.putShort((short) VERSION_STORED);
+        buffer.putShort((short) flags(name));
+        buffer.putShort((short) STORED);
+        buffer.putInt((int) dosTime);
+        buffer.putInt((int) crc);
+        buffer.putInt((int) size);
+        buffer.putInt((int) size);
+        buffer.putShort((short) name.bytes().length);
+        buffer.putShort((short) 0);
+        buffer.put(name.bytes());
+        return buffer.flip();
+    }
+
+    // crc-32, compressed size and uncompressed size, to be written at LOCAL_HEADER_CRC_OFFSET
+    static ByteBuffer crcAndSizes(long crc, long size) {
+        var buffer = allocate(12);
+        buffer.putInt((int) crc);
+        buffer.putInt((int) size);
+        buffer.putInt((int) size);
+        return buffer.flip();
+    }
+
+    /**
+     * Central directory and end of central directory records, switching to zip64 only when needed
+     * @param entries Every entry written, in the same order they appear in the file
+     * @param offset Position of the file where the central directory will be written
+     * @return Buffer ready to be written
+     */
+    static ByteBuffer centralDirectory(List<Entry> entries, long offset) {
+        var size = 0L;
+        for (var e: entries) size += 46 + e.name().bytes().length + (e.offset() >= ZIP32_LIMIT ? 12 : 0);
+        var zip64 = offset + size >= ZIP32_LIMIT || entries.size() >= ZIP32_ENTRIES_LIMIT;
+        var buffer = allocate(Math.toIntExact(size + (zip64 ? 56 + 20 : 0) + 22));
+        for (var e: entries) {
+            var zip64Entry = e.offset() >= ZIP32_LIMIT;
+            var version = zip64Entry ? VERSION_ZIP64 : VERSION_STORED;
+            buffer.putInt(CENTRAL_HEADER_SIGNATURE);
+            buffer.putShort((short) version);
+            buffer.putShort((short) version);
+            buffer.putShort((short) flags(e.name()));
+            buffer.putShort((short) STORED);
+            buffer.putInt((int) e.dosTime());
+            buffer.putInt((int) e.crc());
+            buffer.putInt((int) e.size());
+            buffer.putInt((int) e.size());
+            buffer.putShort((short) e.name().bytes().length);
+            buffer.putShort((short) (zip64Entry ? 12 : 0));
+            buffer.putShort((short) 0); // comment
+            buffer.putShort((short) 0); // disk number
+            buffer.putShort((short) 0); // internal attributes
+            buffer.putInt(0); // external attributes
+            buffer.putInt((int) Math.min(e.offset(), ZIP32_LIMIT));
+            buffer.put(e.name().bytes());
+            if (zip64Entry) {
+                buffer.putShort((short) ZIP64_EXTRA_ID);
+                buffer.putShort((short) 8);
+                buffer.putLong(e.offset());
+            }
+        }
+        if (zip64) {
+            var zip64EndOffset = offset + size;
+            buffer.putInt(ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+            buffer.putLong(44);
+            buffer.putShort((short) VERSION_ZIP64);
+            buffer.putShort((short) VERSION_ZIP64);
+            buffer.putInt(0);
+            buffer.putInt(0);
+            buffer.putLong(entries.size());
+            buffer.putLong(entries.size());
+            buffer.putLong(size);
+            buffer.putLong(offset);
+            buffer.putInt(ZIP64_LOCATOR_SIGNATURE);
+            buffer.putInt(0);
+            buffer.putLong(zip64EndOffset);
+            buffer.putInt(1);
+        }
+        buffer.putInt(END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) Math.min(entries.size(), ZIP32_ENTRIES_LIMIT));
+        buffer.putShort((short) Math.min(entries.size(), ZIP32_ENTRIES_LIMIT));
+        buffer.putInt((int) Math.min(size, ZIP32_LIMIT));
+        buffer.putInt((int) Math.min(offset, ZIP32_LIMIT));
+        buffer.putShort((short) 0);
+        return buffer.flip();
+    }
+
+    private static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,107 @@
+package comics.logic.compression;
+
+import comics.utils.Throttle;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.util.zip.Deflater.NO_COMPRESSION;
+import static java.util.zip.ZipOutputStream.STORED;
+
+// Based on ZipOutputStream, like the original implementation; kept in order to compare it with the channel based
+//  writer.  ZipOutputStream needs the crc-32 of a STORED entry before writing it, so every page is read whole into
+//  the heap, checksummed there and then written
+class ZipStreamCbzWriter implements CbzWriter {
+
+    private final ZipOutputStream zs;
+
+    ZipStreamCbzWriter(Path targetFile) throws IOException {
+        zs = new ZipOutputStream(Files.newOutputStream(targetFile, CREATE_NEW));
+        zs.setMethod(STORED);
+        zs.setLevel(NO_COMPRESSION);
+    }
+
+    @Override
+    public void addFile(String entryName, Path source, BasicFileAttributes attributes) throws IOException {
+        // Read before waiting for a processor, and only once: the checksum is the one of the bytes written
+        var contents = Files.readAllBytes(source);
+        var zipEntry = new ZipEntry(entryName);
+        // Set all the necessary properties for STORED
+        zipEntry.setSize(contents.length);
+        zipEntry.setCompressedSize(contents.length);
+        var crc = new CRC32();
+        Throttle.inCpuStage(() -> crc.update(contents));
+        zipEntry.setCrc(crc.getValue());
+        zs.putNextEntry(zipEntry);
+        zs.write(contents);
+        zs.closeEntry();
+    }
+
+    // ZipOutputStream needs the crc-32 of a STORED entry before writing it, so the whole entry is kept in memory
+    @Override
+    public OutputStream newEntry(String entryName, FileTime lastModified) {
+        return new ByteArrayOutputStream() {
+            private boolean closed = false;
+
+            @Override
+            public void close() throws IOException {
+                if (closed) return;
+                closed = true;
+                var zipEntry = new ZipEntry(entryName);
+                zipEntry.setSize(size());
+                zipEntry.setCompressedSize(size());
+                var crc = new CRC32();
+                Throttle.inCpuStage(() -> crc.update(buf, 0, count));
+                zipEntry.setCrc(crc.getValue());
+                if (lastModified != null) zipEntry.setTime(lastModified.toMillis());
+                zs.putNextEntry(zipEntry);
+                writeTo(zs);
+                zs.closeEntry();
+            }
+        };
+    }
+
+    @Override
+    public void transferEntry(
+        ZipEntryName entryName,
+        FileTime lastModified,
+        long crc,
+        long size,
+        FileChannel source,
+        long dataOffset
+    ) throws IOException {
+        // ZipOutputStream writes every name as UTF-8: the decoded one is the best it can do
+        var zipEntry = new ZipEntry(entryName.name());
+        zipEntry.setSize(size);
+        zipEntry.setCompressedSize(size);
+        zipEntry.setCrc(crc);
+        zipEntry.setTime(lastModified.toMillis());
+        zs.putNextEntry(zipEntry);
+        var buffer = ByteBuffer.allocate(8192);
+        var copied = 0L;
+        while (copied < size) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), size - copied));
+            var read = source.read(buffer, dataOffset + copied);
+            if (read <= 0) throw new IOException(String.format("Unexpected end of data in %s", entryName));
+            zs.write(buffer.array(), 0, read);
+            copied += read;
+        }
+        zs.closeEntry();
+    }
+
+    @Override
+    public void close() throws IOException {
+        zs.close();
+    }
+}
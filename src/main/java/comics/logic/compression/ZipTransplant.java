@@ -0,0 +1,144 @@
+package comics.logic.compression;
+
+import cli.LogUtils;
+import comics.utils.Throttle;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipFile;
+
+import static comics.logic.compression.ZipRecords.ZIP32_LIMIT;
+import static java.nio.file.StandardOpenOption.READ;
+
+// Copies the entries of a zip comic into a new one as they are, reusing the crc-32 and sizes recorded in
+//  its central directory.  Only entries that are not STORED are inflated and written again.  If verifying, the
+//  STORED ones are read through beforehand, for their crc-32 to be checked against the recorded one
+public class ZipTransplant implements Closeable {
+
+    private static final Logger LOGGER = LogUtils.getDefaultLogger();
+    private static final int STORED = 0;
+    private static final int INFLATE_BUFFER_SIZE = 64 * 1024;
+
+    private final File zipFile;
+    private final boolean verify;
+    private final FileChannel channel;
+    private final ZipCentralDirectory directory;
+    // Only opened if any entry needs to be re-encoded
+    private ZipFile zip = null;
+    // Only allocated if verifying
+    private ByteBuffer buffer = null;
+
+    /**
+     * @param zipFile Zip comic whose entries are copied
+     * @param verify If set, the crc-32 of every STORED entry is checked before copying it
+     */
+    public ZipTransplant(File zipFile, boolean verify) throws IOException {
+        this.zipFile = zipFile;
+        this.verify = verify;
+        this.channel = FileChannel.open(zipFile.toPath(), READ);
+        try {
+            this.directory = ZipCentralDirectory.read(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw new IOException(String.format("Unable to read the central directory of %s", zipFile), e);
+        }
+    }
+
+    // Checks the signature of the file instead of trusting its extension
+    public static boolean isZip(File file) {
+        return ZipCentralDirectory.isZip(file.toPath());
+    }
+
+    public List<ArchiveEntry> listEntries() {
+        return directory.entries().stream().filter(e -> !e.isDirectory()).map(e -> new ArchiveEntry(
+            e.name(),
+            e.size(),
+            ZipRecords.fromDosTime(e.dosTime())
+        )).toList();
+    }
+
+    /**
+     * Copies the selected entries into a comic, in archive order
+     * @param selection Paths of the entries to be copied, mapped to their names in the new comic
+     * @param writer Destination comic
+     * @throws IOException If the source cannot be read or the comic cannot be written
+     */
+    public void copyEntries(Map<String, String> selection, CbzWriter writer) throws IOException {
+        var transplanted = 0;
+        var reencoded = 0;
+        for (var entry: directory.entries()) {
+            var entryName = selection.get(entry.name());
+            if (entryName == null || entry.isDirectory()) continue;
+            var lastModified = ZipRecords.fromDosTime(entry.dosTime());
+            if (canTransplant(entry)) {
+                var dataOffset = ZipCentralDirectory.dataOffset(channel, entry);
+                if (verify) checkCrc(entry, dataOffset);
+                // An entry keeping its name keeps its bytes too, whatever their encoding
+                writer.transferEntry(
+                    entryName.equals(entry.name()) ? entry.encodedName() : ZipRecords.encodeName(entryName),
+                    lastModified,
+                    entry.crc(),
+                    entry.size(),
+                    channel,
+                    dataOffset
+                );
+                transplanted++;
+            } else {
+                if (zip == null) zip = new ZipFile(zipFile, ZipEntryName.CP437);
+                var zipEntry = zip.getEntry(entry.name());
+                if (zipEntry == null) throw new IOException(String.format("Unable to read %s", entry.name()));
+                try (var is = zip.getInputStream(zipEntry); var os = writer.newEntry(entryName, lastModified)) {
+                    inflate(is, os);
+                }
+                reencoded++;
+            }
+        }
+        LOGGER.fine(String.format("%s: %d entries transplanted, %d re-encoded", zipFile, transplanted, reencoded));
+    }
+
+    // Inflating each chunk is a stage; the writer takes one of its own for the checksum, not for the write
+    private static void inflate(InputStream is, OutputStream os) throws IOException {
+        var buffer = new byte[INFLATE_BUFFER_SIZE];
+        for (int read; (read = Throttle.inCpuStage(() -> is.read(buffer))) >= 0; ) os.write(buffer, 0, read);
+    }
+
+    // The writers trust the recorded crc-32, so it is checked here; the copy right after reads from the page cache.
+    //  Only the checksum of each chunk is a stage, not the read
+    private void checkCrc(ZipCentralDirectory.Entry entry, long dataOffset) throws IOException {
+        if (buffer == null) buffer = ByteBuffer.allocateDirect(INFLATE_BUFFER_SIZE);
+        var crc = new CRC32();
+        for (var read = 0L; read < entry.size(); ) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), entry.size() - read));
+            if (channel.read(buffer, dataOffset + read) < 0)
+                throw new IOException(String.format("Unexpected end of file reading %s", entry.name()));
+            buffer.flip();
+            read += buffer.remaining();
+            Throttle.inCpuStage(() -> crc.update(buffer));
+        }
+        if (crc.getValue() != entry.crc())
+            throw new IOException(String.format("Could not copy %s (CRC mismatch)", entry.name()));
+    }
+
+    private static boolean canTransplant(ZipCentralDirectory.Entry entry) {
+        return entry.method() == STORED
+            && !entry.isEncrypted()
+            && entry.compressedSize() == entry.size()
+            && entry.size() < ZIP32_LIMIT;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (channel) {
+            if (zip != null) zip.close();
+        }
+    }
+}
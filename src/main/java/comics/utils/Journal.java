@@ -0,0 +1,273 @@
+package comics.utils;
+
+import cli.LogUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.logging.Level.FINE;
+
+/**
+ * Append-only record, inside $HOME/.comicutils/journal, of what a batch run did to every entry of a directory.
+ * Records pile up in memory and a single thread writes them in batches; only the ones announcing a directory or
+ * a partial file about to be created wait for the disk, so that an interrupted run never leaves behind
+ * anything that a resumed one does not know about.
+ */
+public class Journal implements AutoCloseable {
+
+    public enum State { STARTED, EXTRACTING, EXTRACTED, PACKING, PACKED, BACKED_UP, DONE, FAILED }
+
+    private static final Logger logger = LogUtils.getDefaultLogger();
+    private static final String DIRECTORY_NAME = ".comicutils";
+    private static final String JOURNAL_DIRECTORY_NAME = "journal";
+    private static final String PARTIAL_EXTENSION = ".part";
+    // Records that nobody waits for are written at least this often
+    private static final long FLUSH_INTERVAL_MS = 200;
+
+    // What an earlier run left behind for an entry
+    private static class History {
+        State state;
+        File directory;
+        File partialFile;
+    }
+
+    private final File journalFile;
+    private final FileChannel channel;
+    private final Map<String, History> histories = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition pendingRecords = lock.newCondition();
+    private final Condition flushed = lock.newCondition();
+    private final StringBuilder pending = new StringBuilder();
+    private final Thread writer;
+    private long appendedCount = 0;
+    private long flushedCount = 0;
+    private int waiting = 0;
+    private boolean closed = false;
+    private IOException failure = null;
+
+    private Journal(File journalFile, boolean resume) throws IOException {
+        this.journalFile = journalFile;
+        if (resume && journalFile.exists()) {
+            // Lines: state, entry and, optionally, the directory or partial file it is about to create
+            for (var line: Files.readAllLines(journalFile.toPath(), UTF_8)) {
+                var fields = line.split("\t", 3);
+                if (fields.length < 2) continue;
+                try {
+                    apply(State.valueOf(fields[0]), fields[1], fields.length > 2 ? new File(fields[2]) : null);
+                } catch (IllegalArgumentException iae) {
+                    logger.log(FINE, String.format("Ignoring corrupt journal line '%s'", line));
+                }
+            }
+        }
+        channel = FileChannel.open(journalFile.toPath(), CREATE, WRITE, resume ? APPEND : TRUNCATE_EXISTING);
+        writer = Thread.ofPlatform().daemon().name("journal").start(this::writeBatches);
+    }
+
+    /**
+     * @param command Name of the command running
+     * @param cwd Directory the command runs on; every directory has a journal of its own
+     * @param resume If set, the records of the last run are kept and appended to; otherwise, they are dropped
+     * @return The journal of the command in that directory
+     * @throws IOException If the journal cannot be read or created
+     */
+    public static Journal open(String command, Path cwd, boolean resume) throws IOException {
+        var directory = new File(new File(System.getProperty("user.home"), DIRECTORY_NAME), JOURNAL_DIRECTORY_NAME);
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException(String.format("Cannot create the journal directory %s", directory));
+        var key = cwd.toAbsolutePath().normalize().toString();
+        try {
+            // A short hash would sooner or later give two directories the same journal
+            var digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(UTF_8));
+            return new Journal(new File(directory, command + "-" + HexFormat.of().formatHex(digest)), resume);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    public File getJournalFile() {
+        return journalFile;
+    }
+
+    /**
+     * @return True if an earlier run already finished with the entry
+     */
+    public boolean isDone(File entry) {
+        synchronized (histories) {
+            var history = histories.get(key(entry));
+            return history != null && history.state == State.DONE;
+        }
+    }
+
+    /**
+     * Records a state, without waiting for it to be written
+     */
+    public void record(File entry, State state) throws IOException {
+        append(entry, state, null, false);
+    }
+
+    /**
+     * Records that the entry is about to create a directory or partial file, waiting until the record is on disk
+     * @param artifact Directory or partial file that a resumed run should remove if the entry did not finish
+     */
+    public void record(File entry, State state, File artifact) throws IOException {
+        append(entry, state, artifact, true);
+    }
+
+    /**
+     * Deals with whatever the last run left half done.  An entry that is still in place is made ready to be
+     * processed again: its directory and partial file go.  An entry already backed up only missed putting the
+     * new comic in place, which is done here.
+     * @throws IOException If the leftovers cannot be removed or the partial file cannot be put in place
+     */
+    public void recover() throws IOException {
+        Map<String, History> unfinished = new HashMap<>();
+        synchronized (histories) {
+            histories.forEach((entry, history) -> {
+                if (history.state != State.DONE && history.state != State.FAILED) unfinished.put(entry, history);
+            });
+        }
+        for (var e: unfinished.entrySet()) {
+            var entry = new File(e.getKey());
+            var history = e.getValue();
+            if (entry.exists()) {
+                if (history.partialFile != null) Files.deleteIfExists(history.partialFile.toPath());
+                if (history.directory != null && history.directory.isDirectory()) Utils.removeDirectory(history.directory);
+                logger.log(FINE, String.format("%s left half done by the last run, starting it over", entry));
+                record(entry, State.FAILED);
+            } else {
+                if (history.partialFile != null && history.partialFile.exists())
+                    Files.move(history.partialFile.toPath(), targetOf(history.partialFile).toPath());
+                if (history.directory != null && history.directory.isDirectory()) Utils.removeDirectory(history.directory);
+                logger.log(FINE, String.format("%s left half done by the last run, finishing it", entry));
+                record(entry, State.DONE);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            pendingRecords.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        if (failure != null) throw failure;
+    }
+
+    private static String key(File entry) {
+        return entry.getAbsolutePath();
+    }
+
+    private static File targetOf(File partialFile) {
+        var name = partialFile.getName();
+        return new File(partialFile.getParentFile(), name.substring(0, name.length() - PARTIAL_EXTENSION.length()));
+    }
+
+    private void apply(State state, String entry, File artifact) {
+        synchronized (histories) {
+            var history = histories.computeIfAbsent(entry, key -> new History());
+            // A new attempt, or an attempt over: nothing left behind from earlier ones
+            if (state == State.STARTED || state == State.DONE || state == State.FAILED) {
+                history.directory = null;
+                history.partialFile = null;
+            }
+            if (state == State.EXTRACTING) history.directory = artifact;
+            if (state == State.PACKING) history.partialFile = artifact;
+            history.state = state;
+        }
+    }
+
+    private void append(File entry, State state, File artifact, boolean wait) throws IOException {
+        apply(state, key(entry), artifact);
+        var line = artifact == null ?
+            String.format("%s\t%s%n", state, key(entry)) :
+            String.format("%s\t%s\t%s%n", state, key(entry), artifact.getAbsolutePath());
+        lock.lock();
+        try {
+            if (failure != null) throw failure;
+            assert !closed : "Please do not record anything in a closed journal";
+            pending.append(line);
+            var sequence = ++appendedCount;
+            if (!wait) return;
+            waiting++;
+            try {
+                pendingRecords.signal();
+                while (flushedCount < sequence && failure == null) flushed.await();
+            } finally {
+                waiting--;
+            }
+            if (failure != null) throw failure;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(String.format("Interrupted while writing %s", journalFile));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Every record appended while the last batch was being written goes together into the next one
+    private void writeBatches() {
+        while (true) {
+            String batch;
+            long sequence;
+            lock.lock();
+            try {
+                while (pending.isEmpty() && !closed) pendingRecords.await();
+                if (pending.isEmpty()) return;
+                // Let some more pile up, unless somebody is waiting for them
+                if (waiting == 0 && !closed) pendingRecords.await(FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                batch = pending.toString();
+                pending.setLength(0);
+                sequence = appendedCount;
+            } catch (InterruptedException ie) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            IOException error = null;
+            try {
+                var buffer = ByteBuffer.wrap(batch.getBytes(UTF_8));
+                while (buffer.hasRemaining()) channel.write(buffer);
+                channel.force(false);
+            } catch (IOException ioe) {
+                error = ioe;
+            }
+            lock.lock();
+            try {
+                if (error != null) failure = error;
+                else flushedCount = sequence;
+                flushed.signalAll();
+                if (error != null) return;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package comics.utils;
+
+import java.io.InterruptedIOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admits jobs as long as their estimated memory fits in the budget, set up by every command from its
+ * --memory-budget parameter.  Jobs are admitted in the same order they ask, so that a big one does not starve
+ * behind a stream of small ones; a job bigger than the whole budget waits for everything else and runs alone.
+ */
+public class MemoryBudget {
+
+    // Leave some heap for everything that is not a job
+    private static final double DEFAULT_HEAP_FRACTION = 0.75;
+
+    private static MemoryBudget shared = new MemoryBudget(defaultBudget());
+
+    /**
+     * To be called by every command
+     * @param megabytes Budget in MB, or null for three quarters of the maximum heap
+     */
+    public static void configure(String megabytes) {
+        shared = new MemoryBudget(
+            megabytes == null ? defaultBudget() : Utils.parsePositiveNumber(megabytes, "memory-budget") * 1024 * 1024
+        );
+    }
+
+    public static MemoryBudget get() {
+        return shared;
+    }
+
+    private static long defaultBudget() {
+        return (long) (Runtime.getRuntime().maxMemory() * DEFAULT_HEAP_FRACTION);
+    }
+
+    private final long budget;
+    private final Lock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private long available;
+    private long nextTicket = 0;
+    private long serving = 0;
+    // Tickets given up while waiting in line
+    private final Set<Long> abandoned = new HashSet<>();
+
+    public MemoryBudget(long budget) {
+        assert budget > 0 : "Please specify a positive memory budget";
+        this.budget = budget;
+        this.available = budget;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public long getAvailable() {
+        lock.lock();
+        try {
+            return available;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the job fits
+     * @param cost Estimated memory of the job, in bytes
+     * @return Memory actually taken, to be given back with release
+     */
+    public long acquire(long cost) throws InterruptedIOException {
+        var taken = Math.max(0, Math.min(cost, budget));
+        lock.lock();
+        try {
+            var ticket = nextTicket++;
+            try {
+                while (ticket != serving || available < taken) changed.await();
+            } catch (InterruptedException e) {
+                // Do not hold back the jobs behind this one
+                abandoned.add(ticket);
+                nextInLine();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for memory");
+            }
+            available -= taken;
+            serving++;
+            nextInLine();
+            return taken;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release(long taken) {
+        lock.lock();
+        try {
+            available += taken;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void nextInLine() {
+        while (abandoned.remove(serving)) serving++;
+        changed.signalAll();
+    }
+}
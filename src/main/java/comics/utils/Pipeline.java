@@ -0,0 +1,159 @@
+package comics.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Jobs go through a sequence of stages, every stage with its own workers and a bounded queue in front of it: a
+ * stage that falls behind makes the previous ones wait instead of piling up work.  Every stage keeps track of
+ * its throughput, of how busy its workers are and of how deep its queue gets, so that the bottleneck shows.
+ * The workers are virtual threads if Throttle says so.
+ * @param <T> Job, carrying whatever the stages need to pass on to the next ones
+ */
+public class Pipeline<T> implements AutoCloseable {
+
+    // More than this would only be idle threads
+    private static final int MAX_WORKERS = 256;
+
+    @FunctionalInterface
+    public interface Step<T> {
+        void run(T job) throws Exception;
+    }
+
+    private record Ticket<T>(T job, CompletableFuture<Void> done) {}
+
+    private final List<Stage> stages = new ArrayList<>();
+    private final long start = System.nanoTime();
+    private boolean started = false;
+
+    /**
+     * @param name To be shown in the report
+     * @param threads Workers of the stage
+     * @param step What the stage does with every job
+     */
+    public Pipeline<T> stage(String name, int threads, Step<T> step) {
+        assert !started : "Please add every stage before processing any job";
+        assert threads > 0 : "Please specify a positive number of workers";
+        stages.add(new Stage(name, (int) Math.min(threads, MAX_WORKERS), step, stages.size()));
+        return this;
+    }
+
+    /**
+     * Runs the job through every stage, waiting for it to come out of the last one
+     * @throws Exception The failure of the first stage that could not deal with the job; an Error is thrown
+     *  as it is too
+     */
+    public void process(T job) throws Exception {
+        synchronized (this) {
+            if (!started) {
+                assert !stages.isEmpty() : "Please add some stage before processing any job";
+                stages.forEach(Stage::start);
+                started = true;
+            }
+        }
+        var ticket = new Ticket<>(job, new CompletableFuture<>());
+        stages.get(0).put(ticket);
+        try {
+            ticket.done().get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception cause) throw cause;
+            if (e.getCause() instanceof Error error) throw error;
+            throw e;
+        }
+    }
+
+    public String report() {
+        var elapsed = Math.max(1, System.nanoTime() - start) / 1e9;
+        var ret = new StringBuilder(String.format(
+            "%-10s %8s %8s %8s %10s %8s %12s%n", "Stage", "Workers", "Jobs", "Failed", "Jobs/s", "Busy", "Queue avg/max"
+        ));
+        for (var stage : stages) ret.append(stage.report(elapsed));
+        return ret.toString();
+    }
+
+    @Override
+    public void close() {
+        for (var stage : stages) stage.workers.forEach(Thread::interrupt);
+    }
+
+    private class Stage {
+        private final String name;
+        private final int threads;
+        private final Step<T> step;
+        private final int index;
+        private final BlockingQueue<Ticket<T>> queue;
+        private final List<Thread> workers = new ArrayList<>();
+        private final AtomicLong jobs = new AtomicLong(0);
+        private final AtomicLong failures = new AtomicLong(0);
+        private final AtomicLong busyNanos = new AtomicLong(0);
+        private final AtomicLong depthSamples = new AtomicLong(0);
+        private final AtomicLong depthSum = new AtomicLong(0);
+        private final AtomicLong maxDepth = new AtomicLong(0);
+
+        Stage(String name, int threads, Step<T> step, int index) {
+            this.name = name;
+            this.threads = threads;
+            this.step = step;
+            this.index = index;
+            // One job waiting for every worker
+            this.queue = new ArrayBlockingQueue<>(threads);
+        }
+
+        void start() {
+            var builder = Throttle.isVirtualThreads() ? Thread.ofVirtual() : Thread.ofPlatform().daemon();
+            for (var i = 0; i < threads; i++) workers.add(builder.name(name + "-" + i).start(this::work));
+        }
+
+        void put(Ticket<T> ticket) throws InterruptedException {
+            var depth = queue.size();
+            depthSamples.incrementAndGet();
+            depthSum.addAndGet(depth);
+            maxDepth.accumulateAndGet(depth, Math::max);
+            queue.put(ticket);
+        }
+
+        private void work() {
+            try {
+                while (true) {
+                    var ticket = queue.take();
+                    var begin = System.nanoTime();
+                    try {
+                        step.run(ticket.job());
+                    } catch (Throwable e) {
+                        // Whatever it is, the caller must hear of it instead of waiting forever for the job
+                        failures.incrementAndGet();
+                        ticket.done().completeExceptionally(e);
+                        continue;
+                    } finally {
+                        busyNanos.addAndGet(System.nanoTime() - begin);
+                        jobs.incrementAndGet();
+                    }
+                    if (index + 1 < stages.size()) stages.get(index + 1).put(ticket);
+                    else ticket.done().complete(null);
+                }
+            } catch (InterruptedException e) {
+                // Closing
+            }
+        }
+
+        String report(double elapsed) {
+            var samples = Math.max(1, depthSamples.get());
+            return String.format(
+                "%-10s %8d %8d %8d %10.2f %7.1f%% %8.1f/%d%n",
+                name,
+                threads,
+                jobs.get(),
+                failures.get(),
+                jobs.get() / elapsed,
+                100.0 * busyNanos.get() / 1e9 / (elapsed * threads),
+                (double) depthSum.get() / samples,
+                maxDepth.get()
+            );
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package comics.utils;
+
+import cli.LogUtils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Limits how many jobs of the same kind run at once.  There is one throttle for CPU-bound work and another one
+ * for I/O-bound work, both set up by every command from its --threads and --io-threads parameters.
+ * An adaptive throttle starts with a single job and admits one more every time the throughput improves; as
+ * soon as it does not, it goes back to the best concurrency found and stays there.
+ * The CPU-heavy stages of every job (checksums, image encoding, inflating) are limited too, to as many at once
+ * as CPU-bound jobs, so that --threads holds even for jobs admitted by the I/O throttle.  With virtual threads,
+ * every entry gets a thread of its own and those stages are the only limit.  Waiting uses locks instead of
+ * monitors, so that a virtual thread never pins its carrier while waiting.
+ */
+public class Throttle {
+
+    public static final String AUTO = "auto";
+    // A new level of concurrency must beat the previous one by this much to be worth it
+    private static final double MIN_IMPROVEMENT = 1.05;
+
+    private final static Logger logger = LogUtils.getDefaultLogger();
+
+    private static Throttle cpu = new Throttle(Runtime.getRuntime().availableProcessors(), false);
+    private static Throttle io = new Throttle(Runtime.getRuntime().availableProcessors(), false);
+    private static boolean virtualThreads = false;
+    private static Semaphore cpuStages = new Semaphore(cpu.getMaxPermits());
+    // Stages the current thread is inside of
+    private static final ThreadLocal<int[]> STAGE_DEPTH = ThreadLocal.withInitial(() -> new int[1]);
+
+    /**
+     * To be called by every command
+     * @param threads CPU-bound jobs at once: a positive number, 'auto' or null for the available processors
+     * @param ioThreads I/O-bound jobs at once: a positive number, 'auto' or null for the available processors
+     */
+    public static void configure(String threads, String ioThreads) {
+        configure(threads, ioThreads, false);
+    }
+
+    /**
+     * To be called by every command
+     * @param threads CPU-bound jobs at once: a positive number, 'auto' or null for the available processors
+     * @param ioThreads I/O-bound jobs at once: a positive number, 'auto' or null for the available processors;
+     *                  with virtual threads, null means no limit at all
+     * @param virtualThreads If set, entries are processed on virtual threads
+     */
+    public static void configure(String threads, String ioThreads, boolean virtualThreads) {
+        cpu = parse(threads, "threads");
+        io = virtualThreads && ioThreads == null ? new Throttle(Integer.MAX_VALUE, false) : parse(ioThreads, "io-threads");
+        Throttle.virtualThreads = virtualThreads;
+        cpuStages = new Semaphore(cpu.getMaxPermits());
+    }
+
+    public static boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    // A CPU-heavy stage of a job, to be closed as soon as it is done
+    @FunctionalInterface
+    public interface Stage extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    // CPU-heavy work returning a result
+    @FunctionalInterface
+    public interface CpuWork<T> {
+        T run() throws IOException;
+    }
+
+    // CPU-heavy work returning nothing
+    @FunctionalInterface
+    public interface CpuTask {
+        void run() throws IOException;
+    }
+
+    /**
+     * Waits for a processor.  Stages are meant to cover CPU work only, down to a single chunk of an entry, and
+     * not the disk reads and writes around it; a stage opened by a thread already inside one takes no other
+     * permit, so the stages of a writer may well run inside the stage of whoever feeds it
+     * @return The stage, to be closed once, by the same thread
+     * @throws InterruptedIOException If interrupted while waiting
+     */
+    public static Stage cpuStage() throws InterruptedIOException {
+        var depth = STAGE_DEPTH.get();
+        if (depth[0] > 0) {
+            depth[0]++;
+            return () -> depth[0]--;
+        }
+        var gate = cpuStages;
+        try {
+            gate.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a processor");
+        }
+        depth[0] = 1;
+        return () -> {
+            if (--depth[0] == 0) gate.release();
+        };
+    }
+
+    public static <T> T inCpuStage(CpuWork<T> work) throws IOException {
+        var stage = cpuStage();
+        try {
+            return work.run();
+        } finally {
+            stage.close();
+        }
+    }
+
+    public static void inCpuStage(CpuTask task) throws IOException {
+        var stage = cpuStage();
+        try {
+            task.run();
+        } finally {
+            stage.close();
+        }
+    }
+
+    public static Throttle cpu() {
+        return cpu;
+    }
+
+    public static Throttle io() {
+        return io;
+    }
+
+    // Threads a single CPU-bound job may keep busy while as many jobs as the CPU throttle admits run next to it
+    public static int threadsPerCpuJob() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() / cpu.getMaxPermits());
+    }
+
+    private static Throttle parse(String value, String parameterName) {
+        var processors = Runtime.getRuntime().availableProcessors();
+        if (value == null) return new Throttle(processors, false);
+        if (AUTO.equalsIgnoreCase(value.trim())) return new Throttle(processors, true);
+        return new Throttle((int) Math.min(Integer.MAX_VALUE, Utils.parsePositiveNumber(value, parameterName)), false);
+    }
+
+    private final int maxPermits;
+    private final boolean adaptive;
+    private final Lock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private int permits;
+    private int active = 0;
+    // Measures of the current level of concurrency, if adaptive
+    private boolean settled;
+    private double lastThroughput = -1;
+    private long windowStart = System.nanoTime();
+    private long windowBytes = 0;
+    private int windowJobs = 0;
+
+    public Throttle(int maxPermits, boolean adaptive) {
+        assert maxPermits > 0 : "Please specify a positive number of jobs";
+        this.maxPermits = maxPermits;
+        this.adaptive = adaptive;
+        this.permits = adaptive ? 1 : maxPermits;
+        this.settled = !adaptive || maxPermits == 1;
+    }
+
+    // Most jobs that may ever run at once
+    public int getMaxPermits() {
+        return maxPermits;
+    }
+
+    public int getPermits() {
+        lock.lock();
+        try {
+            return permits;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            while (active >= permits) released.await();
+            active++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param bytes Amount of data the job went through, as a measure of the throughput
+     */
+    public void release(long bytes) {
+        lock.lock();
+        try {
+            active--;
+            if (!settled) measure(bytes);
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Every level of concurrency is measured over as many jobs as it admits
+    private void measure(long bytes) {
+        windowBytes += bytes;
+        if (++windowJobs < permits) return;
+        var elapsed = Math.max(1, System.nanoTime() - windowStart);
+        var throughput = (double) windowBytes / elapsed;
+        if (lastThroughput < 0 || throughput > lastThroughput * MIN_IMPROVEMENT) {
+            lastThroughput = throughput;
+            if (permits < maxPermits) permits++;
+            else settled = true;
+        } else {
+            permits = Math.max(1, permits - 1);
+            settled = true;
+        }
+        if (settled) logger.log(Level.FINE, String.format("Settled on %d jobs at once", permits));
+        windowStart = System.nanoTime();
+        windowBytes = 0;
+        windowJobs = 0;
+    }
+}
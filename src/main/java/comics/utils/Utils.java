@@ -8,9 +8,9 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.logging.Level;
-import java.util.stream.Stream;
 
 import static java.util.logging.Level.SEVERE;
 
@@ -34,17 +34,63 @@ public class Utils {
 
     private static Boolean progressBarDisabled = false;
 
-    public static Stream<File> wrapWithProgressBar(Stream<File> stream, String taskName) {
-        if (progressBarDisabled) return stream;
-        else {
-            var pgBuilder = new ProgressBarBuilder();
-            pgBuilder.setTaskName(taskName);
-            // Detect if we have or not a TERM variable in order to present a nicer progress bar
-            if (System.getenv("TERM") == null) pgBuilder.setStyle(ProgressBarStyle.ASCII);
-            return ProgressBar.wrap(stream, pgBuilder);
+    // Progress of a set of jobs that may run in any thread; does nothing if progress bars are disabled
+    public static class Progress implements AutoCloseable {
+        private final ProgressBar progressBar;
+
+        private Progress(ProgressBar progressBar) {
+            this.progressBar = progressBar;
+        }
+
+        public void step() {
+            if (progressBar != null) progressBar.step();
+        }
+
+        // For jobs still being discovered while the first ones run
+        public void setTotal(long total) {
+            if (progressBar != null) progressBar.maxHint(total);
+        }
+
+        @Override
+        public void close() {
+            if (progressBar != null) progressBar.close();
+        }
+    }
+
+    public static Progress newProgress(String taskName, long total) {
+        if (progressBarDisabled) return new Progress(null);
+        var pgBuilder = new ProgressBarBuilder();
+        pgBuilder.setTaskName(taskName);
+        pgBuilder.setInitialMax(total);
+        if (System.getenv("TERM") == null) pgBuilder.setStyle(ProgressBarStyle.ASCII);
+        return new Progress(pgBuilder.build());
+    }
+
+    // Size of a file or, for a directory, of what its listing shows: one read of the directory, whatever its depth
+    public static long estimatedSizeOf(File file) {
+        if (!file.isDirectory()) return file.length();
+        return Arrays.stream(emptyIfNull(file.listFiles())).mapToLong(File::length).sum();
+    }
+
+    // Numeric parameters arrive as text from the command line
+    public static long parsePositiveNumber(String value, String parameterName) {
+        try {
+            var ret = Long.parseLong(value.trim());
+            if (ret > 0) return ret;
+        } catch (NumberFormatException | NullPointerException e) {
+            // Reported below
         }
+        throw new IllegalArgumentException(
+            String.format("Please specify a positive number for '%s' (found '%s')", parameterName, value)
+        );
+    }
 
+    public static String humanReadableSize(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        var exponent = (int) (Math.log(bytes) / Math.log(1024));
+        return String.format("%.1f %siB", bytes / Math.pow(1024, exponent), "KMGTPE".charAt(exponent - 1));
     }
+
     public static void removeDirectory(File directory) throws IOException {
         assert directory != null;
         assert !Files.isSymbolicLink(directory.toPath());
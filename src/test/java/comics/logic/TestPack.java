@@ -2,6 +2,7 @@ package comics.logic;
 
 import comics.commands.PackCommand;
 import comics.commands.UnpackCommand;
+import comics.logic.compression.CbzWriterEngine;
 import comics.utils.Tools.*;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.condition.EnabledOnOs;
@@ -10,9 +11,12 @@ import org.junit.jupiter.params.provider.EnumSource;
 
 import java.io.File;
 import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import static comics.logic.CompressionService.DEFAULT_FILE_EXCLUSIONS;
 import static comics.utils.Tools.TestLevel.COMMAND;
@@ -132,6 +136,64 @@ public class TestPack {
         });
     }
 
+    @ParameterizedTest
+    @EnumSource(CbzWriterEngine.class)
+    public void testPackWriterEngines(CbzWriterEngine engine) {
+        var sb = sandbox();
+        sb.runTest((File sandbox) -> {
+            List.of("up.jpg", "right.jpg", "down.jpg", "left.jpg").forEach(
+                s -> sb.copyResource("/uncompressed/" + s, "some comic/pages/" + s)
+            );
+            sb.copyResource("/uncompressed/up.jpg", "some comic/cover.jpg");
+            var originalData = new HashMap<String, String>();
+            originalData.put("cover.jpg", md5(new File(sandbox, "some comic/cover.jpg")));
+            for (var f: emptyIfNull(new File(sandbox, "some comic/pages").listFiles())) {
+                originalData.put("pages/" + f.getName(), md5(f));
+            }
+            new CompressionService(engine).compressComic(new File(sandbox, "some comic"), false);
+            var comicFile = new File(sandbox, "Some Comic.cbz");
+            assertTrue(comicFile.exists());
+            // ZipInputStream checks the crc-32 of every entry as it is read
+            var names = new HashMap<String, Integer>();
+            try (var zis = new ZipInputStream(Files.newInputStream(comicFile.toPath()))) {
+                ZipEntry entry;
+                while ((entry = zis.getNextEntry()) != null) {
+                    assertEquals(ZipEntry.STORED, entry.getMethod());
+                    names.put(entry.getName(), zis.readAllBytes().length);
+                }
+            }
+            assertEquals(originalData.keySet(), names.keySet());
+            // Extract and check
+            new CompressionService().decompressComic(comicFile);
+            for (var entry: originalData.entrySet()) {
+                assertEquals(entry.getValue(), md5(new File(sandbox, "Some Comic/" + entry.getKey())));
+            }
+        });
+    }
+
+    @Test
+    public void testParallelWriterIsByteIdentical() {
+        var sb = sandbox();
+        sb.runTest((File sandbox) -> {
+            var lastModified = FileTime.fromMillis(System.currentTimeMillis());
+            for (var dir: List.of("sequential", "parallel")) {
+                for (var i = 0; i < 20; i++) {
+                    for (var s: List.of("up.jpg", "right.jpg", "down.jpg", "left.jpg")) {
+                        var f = sb.copyResource("/uncompressed/" + s, String.format("%s/chapter %d/%s", dir, i, s));
+                        Files.setLastModifiedTime(f.toPath(), lastModified);
+                    }
+                }
+            }
+            new CompressionService(CbzWriterEngine.CHANNEL).compressComic(new File(sandbox, "sequential"), false);
+            new CompressionService(CbzWriterEngine.PARALLEL).compressComic(new File(sandbox, "parallel"), false);
+            var sequential = new File(sandbox, "Sequential.cbz");
+            var parallel = new File(sandbox, "Parallel.cbz");
+            assertTrue(sequential.exists());
+            assertTrue(parallel.exists());
+            assertEquals(md5(sequential), md5(parallel));
+        });
+    }
+
     @ParameterizedTest
     @EnumSource(TestLevel.class)
     public void testPackEmpty(TestLevel level) {
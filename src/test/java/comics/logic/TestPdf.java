@@ -1,20 +1,43 @@
 package comics.logic;
 
 import comics.commands.Pdf2CbzCommand;
+import comics.logic.compression.CbzWriterEngine;
 import org.junit.jupiter.api.Test;
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
 import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.junit.jupiter.params.provider.ValueSource;
+import test.Sandbox;
 
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.zip.ZipInputStream;
 
 import static comics.commands.Pdf2CbzCommand.DEFAULT_FORMAT;
 import static comics.utils.Tools.mkdir;
 import static comics.utils.Tools.sandbox;
 import static comics.utils.Utils.emptyIfNull;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrowsExactly;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.condition.OS.LINUX;
@@ -81,6 +104,266 @@ public class TestPdf {
         });
     }
 
+    @ParameterizedTest
+    @ValueSource(booleans = { true, false })
+    public void testPassThrough(boolean passThrough) {
+        var sb = sandbox();
+        sb.runTest((File sandbox) -> {
+            var pdf = sb.copyResource("/compressed/test.pdf", "test.pdf");
+            var document = Loader.loadPDF(pdf);
+            var originalStreams = new ArrayList<byte[]>();
+            for (var page: document.getPages()) {
+                var resources = page.getResources();
+                for (var name: resources.getXObjectNames()) {
+                    var image = (PDImageXObject) resources.getXObject(name);
+                    try (var is = image.getStream().createInputStream(List.of(COSName.DCT_DECODE.getName()))) {
+                        originalStreams.add(is.readAllBytes());
+                    }
+                }
+            }
+            document.close();
+            var createdDirectory = new PdfService(PdfOptions.builder().passThrough(passThrough).build()).convertPDF(pdf, "jpg");
+            checkAllImages(createdDirectory, "jpg");
+            for (var i = 0; i < originalStreams.size(); i++) {
+                var image = new File(createdDirectory, String.format("image_%d.jpg", i + 1));
+                // Either way, the result is a valid image
+                assertNotNull(ImageIO.read(image));
+                assertEquals(passThrough, Arrays.equals(originalStreams.get(i), Files.readAllBytes(image.toPath())));
+            }
+        });
+    }
+
+    @Test
+    public void testBoundedMemory() {
+        var sb = sandbox();
+        sb.runTest((File sandbox) -> {
+            var pdf = sb.copyResource("/compressed/test.pdf", "test.pdf");
+            var scratch = new File(sandbox, "scratch");
+            mkdir(scratch);
+            var options = PdfOptions.builder().maxMainMemoryBytes(1024).scratchDirectory(scratch).build();
+            var createdDirectory = new PdfService(options).convertPDF(pdf, "png");
+            checkAllImages(createdDirectory, "png");
+            // Scratch files are removed once the document is closed
+            assertEquals(0, emptyIfNull(scratch.listFiles()).length);
+        });
+    }
+
+    @Test
+    public void testParallelEncodingIsDeterministic() {
+        var sb = sandbox();
+        sb.runTest((File sandbox) -> {
+            var sequential = new File(sandbox, "sequential");
+            var parallel = new File(sandbox, "parallel");
+            mkdir(sequential);
+            mkdir(parallel);
+            var first = new PdfService(PdfOptions.builder().encoderThreads(1).build())
+                .convertPDF(copyPdf(sb, sequential), "png");
+            var second = new PdfService(PdfOptions.builder().encoderThreads(4).build())
+                .convertPDF(copyPdf(sb, parallel), "png");
+            checkAllImages(first, "png");
+            checkAllImages(second, "png");
+            for (var image : emptyIfNull(first.listFiles()))
+                assertArrayEquals(
+                    Files.readAllBytes(image.toPath()),
+                    Files.readAllBytes(new File(second, image.getName()).toPath())
+                );
+        });
+    }
+
+    private File copyPdf(Sandbox sb, File directory) throws IOException {
+        var pdf = new File(directory, "test.pdf");
+        Files.move(sb.copyResource("/compressed/test.pdf", directory.getName() + ".pdf").toPath(), pdf.toPath());
+        return pdf;
+    }
+
+    @ParameterizedTest
+    @EnumSource(CbzWriterEngine.class)
+    public void testConvertPdfToComic(CbzWriterEngine engine) {
+        var sb = sandbox();
+        sb.runTest((File sandbox) -> {
+            var directoryPdf = new File(sandbox, "directory");
+            var comicPdf = new File(sandbox, "comic");
+            mkdir(directoryPdf);
+            mkdir(comicPdf);
+            var directory = new PdfService().convertPDF(copyPdf(sb, directoryPdf), "png");
+            var pdf = copyPdf(sb, comicPdf);
+            new CompressionService(engine).convertPdf(pdf, new PdfService(), "png");
+            assertFalse(pdf.exists());
+            // No intermediate directory
+            assertFalse(new File(comicPdf, "test").exists());
+            var comic = new File(comicPdf, "Test.cbz");
+            assertTrue(comic.exists());
+            var names = new ArrayList<String>();
+            try (var zis = new ZipInputStream(new FileInputStream(comic))) {
+                for (var entry = zis.getNextEntry(); entry != null; entry = zis.getNextEntry()) {
+                    names.add(entry.getName());
+                    assertArrayEquals(
+                        Files.readAllBytes(new File(directory, entry.getName()).toPath()),
+                        zis.readAllBytes()
+                    );
+                }
+            }
+            assertEquals(List.of("image_1.png", "image_2.png", "image_3.png", "image_4.png", "image_5.png", "image_6.png"), names);
+        });
+    }
+
+    // Three pages sharing the same background, plus a page of its own each
+    private File repeatedImagesPdf(File directory) throws IOException {
+        var pdf = new File(directory, "repeated.pdf");
+        try (var document = new PDDocument()) {
+            var background = LosslessFactory.createFromImage(document, solidImage(Color.RED));
+            for (var color : List.of(Color.GREEN, Color.BLUE, Color.YELLOW)) {
+                var page = new PDPage();
+                document.addPage(page);
+                try (var contents = new PDPageContentStream(document, page)) {
+                    contents.drawImage(background, 0, 0);
+                    contents.drawImage(LosslessFactory.createFromImage(document, solidImage(color)), 20, 20);
+                }
+            }
+            document.save(pdf);
+        }
+        return pdf;
+    }
+
+    private BufferedImage solidImage(Color color) {
+        var image = new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
+        var graphics = image.createGraphics();
+        graphics.setColor(color);
+        graphics.fillRect(0, 0, 10, 10);
+        graphics.dispose();
+        return image;
+    }
+
+    @ParameterizedTest
+    @CsvSource({ "DUPLICATE,6", "ONCE,4", "SKIP,3" })
+    public void testRepeatedImages(RepeatedImagePolicy policy, int expected) {
+        var sb = sandbox();
+        sb.runTest((File sandbox) -> {
+            var pdf = repeatedImagesPdf(sandbox);
+            var options = PdfOptions.builder().repeatedImages(policy).build();
+            var service = new PdfService(options);
+            var directory = service.convertPDF(pdf, "png");
+            var images = emptyIfNull(directory.listFiles());
+            assertEquals(expected, images.length);
+            // Every repeated image is let go once its last reference is written
+            assertEquals(0, service.sharedImagesLeft());
+            var reds = 0;
+            for (var image : images) if (ImageIO.read(image).getRGB(0, 0) == Color.RED.getRGB()) reds++;
+            assertEquals(switch (policy) { case DUPLICATE -> 3; case ONCE -> 1; case SKIP -> 0; }, reds);
+        });
+    }
+
+    // A page drawn with vectors, and another one with an image
+    private File vectorPdf(File directory) throws IOException {
+        var pdf = new File(directory, "vector.pdf");
+        try (var document = new PDDocument()) {
+            var vectorPage = new PDPage(PDRectangle.A6);
+            document.addPage(vectorPage);
+            try (var contents = new PDPageContentStream(document, vectorPage)) {
+                contents.setNonStrokingColor(Color.BLUE);
+                contents.addRect(0, 0, PDRectangle.A6.getWidth(), PDRectangle.A6.getHeight());
+                contents.fill();
+            }
+            var imagePage = new PDPage(PDRectangle.A6);
+            document.addPage(imagePage);
+            try (var contents = new PDPageContentStream(document, imagePage)) {
+                contents.drawImage(LosslessFactory.createFromImage(document, solidImage(Color.RED)), 0, 0);
+            }
+            document.save(pdf);
+        }
+        return pdf;
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = { true, false })
+    public void testRenderedPages(boolean renderAllPages) {
+        var sb = sandbox();
+        sb.runTest((File sandbox) -> {
+            var pdf = vectorPdf(sandbox);
+            var options = PdfOptions.builder().renderAllPages(renderAllPages).renderDpi(72).build();
+            var directory = new PdfService(options).convertPDF(pdf, "png");
+            var first = ImageIO.read(new File(directory, "image_1.png"));
+            var second = ImageIO.read(new File(directory, "image_2.png"));
+            assertEquals(2, emptyIfNull(directory.listFiles()).length);
+            // The vector page is rendered
+            assertEquals((int) PDRectangle.A6.getWidth(), first.getWidth());
+            assertEquals(Color.BLUE.getRGB(), first.getRGB(first.getWidth() / 2, first.getHeight() / 2));
+            // The image page is rendered only if asked to
+            assertEquals(renderAllPages ? (int) PDRectangle.A6.getWidth() : 10, second.getWidth());
+        });
+    }
+
+    @Test
+    public void testQuality() {
+        var sb = sandbox();
+        sb.runTest((File sandbox) -> {
+            var low = new File(sandbox, "low");
+            var high = new File(sandbox, "high");
+            mkdir(low);
+            mkdir(high);
+            var lowDirectory = new PdfService(PdfOptions.builder().passThrough(false).quality(0.1f).build())
+                .convertPDF(copyPdf(sb, low), "jpg");
+            var highDirectory = new PdfService(PdfOptions.builder().passThrough(false).quality(1f).build())
+                .convertPDF(copyPdf(sb, high), "jpg");
+            checkAllImages(lowDirectory, "jpg");
+            checkAllImages(highDirectory, "jpg");
+            for (var image : emptyIfNull(lowDirectory.listFiles())) {
+                var highImage = new File(highDirectory, image.getName());
+                assertNotNull(ImageIO.read(image));
+                assertNotNull(ImageIO.read(highImage));
+                assertTrue(image.length() < highImage.length());
+            }
+        });
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = { true, false })
+    public void testProgressive(boolean progressive) {
+        var sb = sandbox();
+        sb.runTest((File sandbox) -> {
+            var pdf = sb.copyResource("/compressed/test.pdf", "test.pdf");
+            var directory = new PdfService(PdfOptions.builder().passThrough(false).progressive(progressive).build())
+                .convertPDF(pdf, "jpg");
+            checkAllImages(directory, "jpg");
+            for (var image : emptyIfNull(directory.listFiles())) {
+                assertNotNull(ImageIO.read(image));
+                // Start of frame marker: SOF2 for progressive images, SOF0 for baseline ones
+                assertEquals(progressive, containsMarker(Files.readAllBytes(image.toPath()), (byte) 0xC2));
+                assertEquals(!progressive, containsMarker(Files.readAllBytes(image.toPath()), (byte) 0xC0));
+            }
+        });
+    }
+
+    private boolean containsMarker(byte[] jpeg, byte marker) {
+        for (var i = 2; i < jpeg.length - 1; i++) if (jpeg[i] == (byte) 0xFF && jpeg[i + 1] == marker) return true;
+        return false;
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "0", "101", "high" })
+    public void testCommandBadQuality(String quality) {
+        var sb = sandbox();
+        sb.runTest((File sandbox) -> {
+            sb.copyResource("/compressed/test.pdf", "test.pdf");
+            var command = new Pdf2CbzCommand();
+            command.setDisableProgressBar(true);
+            command.setQuality(quality);
+            assertThrowsExactly(IllegalArgumentException.class, () -> command.run(sandbox.toPath()));
+        });
+    }
+
+    @Test
+    public void testCommandBadMaxMemory() {
+        var sb = sandbox();
+        sb.runTest((File sandbox) -> {
+            sb.copyResource("/compressed/test.pdf", "test.pdf");
+            var command = new Pdf2CbzCommand();
+            command.setDisableProgressBar(true);
+            command.setMaxMemory("-3");
+            assertThrowsExactly(IllegalArgumentException.class, () -> command.run(sandbox.toPath()));
+        });
+    }
+
     @Test
     public void testCommand() {
         var sb = sandbox();
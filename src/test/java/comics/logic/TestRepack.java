@@ -1,20 +1,45 @@
 package comics.logic;
 
 import comics.commands.RepackCommand;
+import comics.logic.compression.CbzWriterEngine;
+import comics.utils.Journal;
+import comics.utils.Throttle;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
 
 import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
+import static comics.utils.Tools.md5;
 import static comics.utils.Tools.sandbox;
+import static comics.utils.Tools.today;
 import static comics.utils.Utils.emptyIfNull;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrowsExactly;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class TestRepack {
 
+    // Some of these tests run the command with threads of their own; nothing else should inherit them
+    @AfterEach
+    public void resetThrottles() {
+        Throttle.configure(null, null);
+    }
+
     @Test
     public void testCommandRegularExecution() {
         var sb = sandbox();
@@ -86,4 +111,288 @@ public class TestRepack {
             ctx.err().contains(String.format("The following files have a naming conflict:%nTest"))
         );
     }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "cbr", "cbz" })
+    public void testStreamingExecution(String extension) {
+        var sb = sandbox();
+        sb.runTest((File sandbox) -> {
+            var comicFile = sb.copyResource("/compressed/test." + extension, "Another test 456." + extension);
+            var command = new RepackCommand();
+            command.setDisableProgressBar(true);
+            command.setStreaming(true);
+            assertEquals(0, command.run(sandbox.toPath()));
+            assertFalse(comicFile.exists());
+            // No intermediate directory is created
+            assertFalse(new File(sandbox, "Another test 456").exists());
+            var targetFile = new File(sandbox, "Another Test - 456.cbz");
+            assertTrue(targetFile.exists());
+            new CompressionService().decompressComic(targetFile);
+            var newDir = new File(sandbox, "Another Test - 456");
+            var expectedFiles = List.of("up.jpg", "right.jpg", "down.jpg", "left.jpg");
+            var children = Arrays.stream(emptyIfNull(newDir.listFiles())).map(File::getName).toList();
+            assertEquals(expectedFiles.size(), children.size());
+            expectedFiles.forEach(f -> assertTrue(children.contains(f)));
+        });
+    }
+
+    // STORED entries are copied as they are, trusting their recorded crc-32 unless verifying or the writer
+    //  checksums them anyway
+    @ParameterizedTest
+    @CsvSource({ "CHANNEL, true", "PARALLEL, true", "STREAM, true", "PARALLEL, false", "STREAM, false" })
+    public void testCorruptComicIsNotTransplanted(CbzWriterEngine engine, boolean verify) {
+        var sb = sandbox();
+        sb.runTest((File sandbox) -> {
+            var comicFile = sb.copyResource("/compressed/test.cbz", "test.cbz");
+            // Flip a byte in the contents of foo.txt, STORED, right after its local header
+            var bytes = Files.readAllBytes(comicFile.toPath());
+            var header = new String(bytes, StandardCharsets.ISO_8859_1).indexOf("foo.txt") - 30;
+            var extraLength = (bytes[header + 28] & 0xff) | (bytes[header + 29] & 0xff) << 8;
+            bytes[header + 30 + "foo.txt".length() + extraLength + 2] ^= (byte) 0xff;
+            Files.write(comicFile.toPath(), bytes);
+            var corruptMd5 = md5(comicFile);
+            var service = new CompressionService(engine, null, verify);
+            assertThrowsExactly(CompressionException.class, () -> service.repackComic(comicFile, false));
+            assertEquals(corruptMd5, md5(comicFile));
+            assertEquals(List.of("test.cbz"), Arrays.stream(emptyIfNull(sandbox.list())).toList());
+        });
+    }
+
+    @Test
+    public void testVirtualThreads() {
+        var sb = sandbox();
+        sb.runTest((File sandbox) -> {
+            for (var i = 1; i <= 5; i++) sb.copyResource("/compressed/test.cbr", String.format("comic %d.cbr", i));
+            sb.copyResource("/compressed/test.cbz", "comic 6.cbz");
+            var command = new RepackCommand();
+            command.setDisableProgressBar(true);
+            command.setStreaming(true);
+            command.setVirtualThreads(true);
+            command.setThreads("2");
+            assertEquals(0, command.run(sandbox.toPath()));
+            for (var i = 1; i <= 6; i++) assertTrue(new File(sandbox, String.format("Comic - %d.cbz", i)).exists());
+        });
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = { false, true })
+    public void testRecursive(boolean virtualThreads) {
+        var sb = sandbox();
+        var ctx = sb.runTest((File sandbox) -> {
+            var series = new File(new File(sandbox, "publisher"), "series");
+            assertTrue(series.mkdirs());
+            var conflicts = new File(sandbox, "conflicts");
+            assertTrue(conflicts.mkdir());
+            sb.copyResource("/compressed/test.cbr", "comic 1.cbr");
+            moveInto(sb.copyResource("/compressed/test.cbr", "comic 2.cbr"), series);
+            moveInto(sb.copyResource("/compressed/test.cbz", "comic 3.cbz"), series);
+            moveInto(sb.copyResource("/compressed/test.cbr", "test.cbr"), conflicts);
+            moveInto(sb.copyResource("/compressed/test.cbr", "test [by some guy].cbr"), conflicts);
+            var command = new RepackCommand();
+            command.setDisableProgressBar(true);
+            command.setRecursive(true);
+            command.setVirtualThreads(virtualThreads);
+            command.run(sandbox.toPath());
+            assertTrue(new File(sandbox, "Comic - 1.cbz").exists());
+            assertTrue(new File(series, "Comic - 2.cbz").exists());
+            assertTrue(new File(series, "Comic - 3.cbz").exists());
+            assertFalse(new File(series, "comic 2.cbr").exists());
+            // A naming conflict only keeps its own directory out
+            assertTrue(new File(conflicts, "test.cbr").exists());
+            assertTrue(new File(conflicts, "test [by some guy].cbr").exists());
+            return null;
+        }, true);
+        assertTrue(ctx.out().contains("conflicts - The following files have a naming conflict"));
+    }
+
+    @Test
+    public void testResume() {
+        var sb = sandbox();
+        sb.runTest((File sandbox) -> {
+            var done = sb.copyResource("/compressed/test.cbz", "done 1.cbz");
+            var interrupted = sb.copyResource("/compressed/test.cbr", "interrupted 2.cbr");
+            // What a killed run leaves behind: a half-extracted directory in the way
+            var directory = new File(sandbox, "interrupted 2");
+            assertTrue(directory.mkdir());
+            Files.writeString(new File(directory, "up.jpg").toPath(), "half an image");
+            try (var journal = Journal.open("repack", sandbox.toPath(), false)) {
+                journal.record(done, Journal.State.STARTED);
+                journal.record(done, Journal.State.DONE);
+                journal.record(interrupted, Journal.State.STARTED);
+                journal.record(interrupted, Journal.State.EXTRACTING, directory);
+            }
+            var command = new RepackCommand();
+            command.setDisableProgressBar(true);
+            command.setResume(true);
+            assertEquals(0, command.run(sandbox.toPath()));
+            // Finished by the last run
+            assertTrue(done.exists());
+            assertFalse(new File(sandbox, "Done - 1.cbz").exists());
+            // Started over
+            assertFalse(interrupted.exists());
+            assertFalse(directory.exists());
+            assertTrue(new File(sandbox, "Interrupted - 2.cbz").exists());
+        });
+    }
+
+    private static void moveInto(File file, File directory) throws Exception {
+        Files.move(file.toPath(), new File(directory, file.getName()).toPath());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "cbr", "cbz" })
+    public void testStreamingDirectoryHierarchy(String extension) {
+        var sb = sandbox();
+        sb.runTest((File sandbox) -> {
+            sb.copyResource("/compressed/test_with_directories." + extension, "test_with_directories." + extension);
+            var command = new RepackCommand();
+            command.setDisableProgressBar(true);
+            command.setStreaming(true);
+            assertEquals(0, command.run(sandbox.toPath()));
+            var targetFile = new File(sandbox, "Test_with_directories.cbz");
+            assertTrue(targetFile.exists());
+            new CompressionService().decompressComic(targetFile);
+            var newDir = new File(sandbox, "Test_with_directories");
+            assertEquals(
+                List.of("down.jpg", "left.jpg"),
+                Arrays.stream(emptyIfNull(new File(newDir, "dir1").list())).sorted().toList()
+            );
+            assertEquals(
+                List.of("right.jpg", "up.jpg"),
+                Arrays.stream(emptyIfNull(new File(newDir, "dir2").list())).sorted().toList()
+            );
+        });
+    }
+
+    @Test
+    public void testStreamingAlreadyNormalized() {
+        var sb = sandbox();
+        sb.runTest((File sandbox) -> {
+            var comicFile = sb.copyResource("/compressed/test.cbz", "Test.cbz");
+            var originalMd5 = md5(comicFile);
+            new CompressionService().repackComic(comicFile, false, CompressionService.DEFAULT_FILE_EXCLUSIONS);
+            // The new comic took the place of the original one, which went to the backup directory
+            assertTrue(comicFile.exists());
+            assertFalse(new File(sandbox, "Test.cbz.part").exists());
+            var backup = new File(sandbox, String.format(".comicutils/%s/Test.cbz", today()));
+            assertEquals(originalMd5, md5(backup));
+            new CompressionService().decompressComic(comicFile);
+            assertEquals(4, emptyIfNull(new File(sandbox, "Test").list()).length);
+        });
+    }
+
+    @Test
+    public void testZipTransplant() {
+        var sb = sandbox();
+        sb.runTest((File sandbox) -> {
+            var originalData = new HashMap<String, byte[]>();
+            for (var s: List.of("up.jpg", "right.jpg", "down.jpg", "left.jpg", "bar.txt")) {
+                originalData.put(s, Files.readAllBytes(sb.copyResource("/uncompressed/" + s, "pages/" + s).toPath()));
+            }
+            // Mix of STORED and DEFLATED entries under an unnecessary directory, plus some garbage
+            var comicFile = new File(sandbox, "some comic [scan].cbz");
+            try (var zs = new ZipOutputStream(Files.newOutputStream(comicFile.toPath()))) {
+                for (var entry: originalData.entrySet()) {
+                    var zipEntry = new ZipEntry("scans/" + entry.getKey());
+                    if (!entry.getKey().equals("up.jpg")) {
+                        var crc = new CRC32();
+                        crc.update(entry.getValue());
+                        zipEntry.setMethod(ZipEntry.STORED);
+                        zipEntry.setSize(entry.getValue().length);
+                        zipEntry.setCrc(crc.getValue());
+                    }
+                    zs.putNextEntry(zipEntry);
+                    zs.write(entry.getValue());
+                    zs.closeEntry();
+                }
+                zs.putNextEntry(new ZipEntry("scans/z-scanner.jpg"));
+                zs.write(originalData.get("up.jpg"));
+                zs.closeEntry();
+            }
+            var command = new RepackCommand();
+            command.setDisableProgressBar(true);
+            command.setGarbageCollector(true);
+            assertEquals(0, command.run(sandbox.toPath()));
+            assertFalse(comicFile.exists());
+            var targetFile = new File(sandbox, "Some Comic.cbz");
+            assertTrue(targetFile.exists());
+            // Every entry is STORED, flattened and has a valid crc-32
+            var entries = new HashMap<String, byte[]>();
+            try (var zis = new ZipInputStream(Files.newInputStream(targetFile.toPath()))) {
+                ZipEntry entry;
+                while ((entry = zis.getNextEntry()) != null) {
+                    assertEquals(ZipEntry.STORED, entry.getMethod());
+                    entries.put(entry.getName(), zis.readAllBytes());
+                }
+            }
+            assertEquals(List.of("down.jpg", "left.jpg", "right.jpg", "up.jpg"), entries.keySet().stream().sorted().toList());
+            entries.forEach((name, data) -> assertArrayEquals(originalData.get(name), data));
+        });
+    }
+
+    @Test
+    public void testZipTransplantKeepsCp437Names() {
+        var sb = sandbox();
+        sb.runTest((File sandbox) -> {
+            var cp437 = Charset.forName("IBM437");
+            var originalData = new HashMap<String, byte[]>();
+            // Read as UTF-8, both names would turn into the very same one
+            originalData.put("página á.jpg", Files.readAllBytes(sb.copyResource("/uncompressed/up.jpg", "up.jpg").toPath()));
+            originalData.put("página ñ.jpg", Files.readAllBytes(sb.copyResource("/uncompressed/down.jpg", "down.jpg").toPath()));
+            var comicFile = new File(sandbox, "windows.cbz");
+            try (var zs = new ZipOutputStream(Files.newOutputStream(comicFile.toPath()), cp437)) {
+                for (var entry: originalData.entrySet()) {
+                    var zipEntry = new ZipEntry(entry.getKey());
+                    var crc = new CRC32();
+                    crc.update(entry.getValue());
+                    zipEntry.setMethod(ZipEntry.STORED);
+                    zipEntry.setSize(entry.getValue().length);
+                    zipEntry.setCrc(crc.getValue());
+                    zs.putNextEntry(zipEntry);
+                    zs.write(entry.getValue());
+                    zs.closeEntry();
+                }
+            }
+            new CompressionService().repackComic(comicFile, false);
+            var targetFile = new File(sandbox, "Windows.cbz");
+            assertTrue(targetFile.exists());
+            var entries = new HashMap<String, byte[]>();
+            try (var zis = new ZipInputStream(Files.newInputStream(targetFile.toPath()), cp437)) {
+                ZipEntry entry;
+                while ((entry = zis.getNextEntry()) != null) entries.put(entry.getName(), zis.readAllBytes());
+            }
+            assertEquals(originalData.keySet(), entries.keySet());
+            entries.forEach((name, data) -> assertArrayEquals(originalData.get(name), data));
+            // The names were copied as they were, not re-encoded
+            var contents = new String(Files.readAllBytes(targetFile.toPath()), StandardCharsets.ISO_8859_1);
+            for (var name: originalData.keySet())
+                assertTrue(contents.contains(new String(name.getBytes(cp437), StandardCharsets.ISO_8859_1)));
+        });
+    }
+
+    @Test
+    public void testManifestSkipsProcessedComics() {
+        var sb = sandbox();
+        var ctx = sb.runTest((File sandbox) -> {
+            sb.copyResource("/compressed/test.cbr", "test 1.cbr");
+            var command = new RepackCommand();
+            command.setDisableProgressBar(true);
+            assertEquals(0, command.run(sandbox.toPath()));
+            var targetFile = new File(sandbox, "Test - 1.cbz");
+            var originalMd5 = md5(targetFile);
+            // A copy is recognized by its contents
+            Files.copy(targetFile.toPath(), new File(sandbox, "Copy - 1.cbz").toPath());
+            assertEquals(0, command.run(sandbox.toPath()));
+            assertEquals(originalMd5, md5(targetFile));
+            // Nothing else went to the backup directory
+            assertFalse(new File(sandbox, String.format(".comicutils/%s/Test - 1.cbz", today())).exists());
+            assertFalse(new File(sandbox, String.format(".comicutils/%s/Copy - 1.cbz", today())).exists());
+            // Unless we force it
+            command.setForce(true);
+            assertEquals(0, command.run(sandbox.toPath()));
+            assertTrue(new File(sandbox, String.format(".comicutils/%s/Test - 1.cbz", today())).exists());
+            return 0;
+        }, true);
+        assertTrue(ctx.out().contains("Skipped 2 entries already processed"));
+    }
 }
@@ -1,17 +1,22 @@
 package comics.logic;
 
 import comics.commands.UnpackCommand;
+import comics.logic.compression.CbzWriterEngine;
 import comics.utils.Tools.TestLevel;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.condition.EnabledOnOs;
 import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
 import org.junit.jupiter.params.provider.EnumSource;
 import org.junit.jupiter.params.provider.ValueSource;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.List;
+import java.util.zip.ZipOutputStream;
 
 import static comics.utils.Tools.TestLevel.COMMAND;
 import static comics.utils.Tools.TestLevel.SERVICE;
@@ -93,6 +98,50 @@ public class TestUnpack {
         });
     }
 
+    @Test
+    public void testZipWithAnyExtension() {
+        var sb = sandbox();
+        sb.runTest((File sandbox) -> {
+            // A zip file posing as a cbr is read as a zip, and yields the same files as the real cbr
+            var disguised = sb.copyResource("/compressed/test.cbz", "disguised.cbr");
+            var rar = sb.copyResource("/compressed/test.cbr", "rar.cbr");
+            var service = new CompressionService();
+            service.decompressComic(disguised);
+            service.decompressComic(rar);
+            var names = Arrays.stream(emptyIfNull(new File(sandbox, "rar").list())).sorted().toList();
+            assertEquals(names, Arrays.stream(emptyIfNull(new File(sandbox, "disguised").list())).sorted().toList());
+            for (var name: names)
+                assertEquals(md5(new File(new File(sandbox, "rar"), name)), md5(new File(new File(sandbox, "disguised"), name)));
+        });
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "test.cbz", "test.cbr", "test_with_directories.cbz", "test_with_directories.cbr" })
+    public void testParallelExtraction(String resource) {
+        var sb = sandbox();
+        sb.runTest((File sandbox) -> {
+            // Extracting in ranges yields exactly the same files as extracting in order
+            var extension = resource.substring(resource.lastIndexOf('.'));
+            var sequential = sb.copyResource("/compressed/" + resource, "sequential" + extension);
+            var parallel = sb.copyResource("/compressed/" + resource, "parallel" + extension);
+            new CompressionService(CbzWriterEngine.CHANNEL, null, true).decompressComic(sequential);
+            new CompressionService(CbzWriterEngine.CHANNEL, null, true, 4).decompressComic(parallel);
+            var sequentialDirectory = new File(sandbox, "sequential");
+            var parallelDirectory = new File(sandbox, "parallel");
+            var files = relativeFiles(sequentialDirectory);
+            assertFalse(files.isEmpty());
+            assertEquals(files, relativeFiles(parallelDirectory));
+            for (var file: files)
+                assertEquals(md5(new File(sequentialDirectory, file)), md5(new File(parallelDirectory, file)));
+        });
+    }
+
+    private static List<String> relativeFiles(File directory) throws Exception {
+        try (var paths = Files.walk(directory.toPath())) {
+            return paths.filter(Files::isRegularFile).map(p -> directory.toPath().relativize(p).toString()).sorted().toList();
+        }
+    }
+
     @Test
     public void testCommandErrorExistingDirectory() {
         var sb = sandbox();
@@ -162,6 +211,61 @@ public class TestUnpack {
         });
     }
 
+    // Every entry is checked, inflated or STORED, whether verifying or not
+    @ParameterizedTest
+    @CsvSource({ "false, down.jpg", "true, down.jpg", "false, foo.txt", "true, foo.txt" })
+    public void testCorruptComicIsNotBackedUp(boolean verify, String entry) {
+        var sb = sandbox();
+        sb.runTest((File sandbox) -> {
+            var comicFile = sb.copyResource("/compressed/test.cbz", "test.cbz");
+            // Flip a byte in the contents of the entry, right after its local header
+            var bytes = Files.readAllBytes(comicFile.toPath());
+            var header = new String(bytes, StandardCharsets.ISO_8859_1).indexOf(entry) - 30;
+            var extraLength = (bytes[header + 28] & 0xff) | (bytes[header + 29] & 0xff) << 8;
+            bytes[header + 30 + entry.length() + extraLength + 2] ^= (byte) 0xff;
+            Files.write(comicFile.toPath(), bytes);
+            var service = new CompressionService(CbzWriterEngine.CHANNEL, null, verify);
+            assertThrowsExactly(CompressionException.class, () -> service.decompressComic(comicFile));
+            assertTrue(comicFile.exists());
+            assertFalse(new File(sandbox, "test").exists());
+            assertFalse(new File(new File(new File(sandbox, ".comicutils"), today()), "test.cbz").exists());
+        });
+    }
+
+    @Test
+    public void testUnreadableDirectoryIsLeftTo7Zip() {
+        var sb = sandbox();
+        sb.runTest((File sandbox) -> {
+            var comicFile = sb.copyResource("/compressed/test.cbz", "test.cbz");
+            // Break the signature of the first central directory header: 7-zip still finds the local ones
+            var bytes = Files.readAllBytes(comicFile.toPath());
+            var header = new String(bytes, StandardCharsets.ISO_8859_1).indexOf("PK\u0001\u0002");
+            bytes[header + 3] = 0x7f;
+            Files.write(comicFile.toPath(), bytes);
+            new CompressionService().decompressComic(comicFile);
+            var targetDirectory = new File(sandbox, "test");
+            assertEquals(9, emptyIfNull(targetDirectory.list()).length);
+            for (var s: new String[]{"foo", "bar", "baz"})
+                assertEquals(s, Files.readString(new File(targetDirectory, s + ".txt").toPath()).trim());
+            assertTrue(new File(sandbox, String.format(".comicutils/%s/test.cbz", today())).exists());
+        });
+    }
+
+    @Test
+    public void testEmptyZip() {
+        var sb = sandbox();
+        sb.runTest((File sandbox) -> {
+            var comicFile = new File(sandbox, "empty.cbz");
+            // Nothing but the end of central directory record
+            new ZipOutputStream(new FileOutputStream(comicFile)).close();
+            new CompressionService().decompressComic(comicFile);
+            var targetDirectory = new File(sandbox, "empty");
+            checkDirectory(targetDirectory);
+            assertEquals(0, emptyIfNull(targetDirectory.list()).length);
+            assertTrue(new File(sandbox, String.format(".comicutils/%s/empty.cbz", today())).exists());
+        });
+    }
+
     @Test
     @EnabledOnOs( { LINUX, MAC })
     public void testServiceErrorsSymlinks() {
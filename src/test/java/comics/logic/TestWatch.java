@@ -0,0 +1,63 @@
+package comics.logic;
+
+import comics.commands.WatchCommand;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static comics.utils.Tools.sandbox;
+import static comics.utils.Tools.today;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestWatch {
+
+    private static void waitFor(File file) throws InterruptedException {
+        for (var i = 0; i < 300 && !file.exists(); i++) Thread.sleep(100);
+    }
+
+    @Test
+    public void testWatch() {
+        var sb = sandbox();
+        sb.runTest((File sandbox) -> {
+            var inbox = new File(sandbox, "inbox");
+            assertTrue(inbox.mkdir());
+            // Already there when the watch starts
+            Files.move(sb.copyResource("/compressed/test.cbr", "comic 1.cbr").toPath(), new File(inbox, "comic 1.cbr").toPath());
+            var command = new WatchCommand();
+            command.setQuietPeriod("200");
+            var ret = new AtomicInteger(Integer.MIN_VALUE);
+            var watch = Thread.ofPlatform().start(() -> {
+                try {
+                    ret.set(command.run(inbox.toPath()));
+                } catch (Exception e) {
+                    ret.set(-2);
+                }
+            });
+            try {
+                var first = new File(inbox, "Comic - 1.cbz");
+                waitFor(first);
+                assertTrue(first.exists());
+                // Dropped while watching
+                var dropped = sb.copyResource("/compressed/test.cbz", "comic 2.cbz");
+                Files.move(dropped.toPath(), new File(inbox, dropped.getName()).toPath());
+                var second = new File(inbox, "Comic - 2.cbz");
+                waitFor(second);
+                assertTrue(second.exists());
+                assertFalse(new File(inbox, "comic 2.cbz").exists());
+                // The comics written by the watch are left alone
+                var firstModified = first.lastModified();
+                Thread.sleep(1000);
+                assertEquals(firstModified, first.lastModified());
+                assertTrue(new File(new File(new File(sandbox, ".comicutils"), today()), "comic 1.cbr").exists());
+            } finally {
+                watch.interrupt();
+                watch.join();
+            }
+            assertEquals(0, ret.get());
+        });
+    }
+}
@@ -0,0 +1,76 @@
+package comics.utils;
+
+import comics.utils.Journal.State;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static comics.utils.Tools.sandbox;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestJournal {
+
+    @Test
+    public void testResume() {
+        var sb = sandbox();
+        sb.runTest((File sandbox) -> {
+            var done = new File(sandbox, "done.cbr");
+            var failed = new File(sandbox, "failed.cbr");
+            try (var journal = Journal.open("test", sandbox.toPath(), false)) {
+                journal.record(done, State.STARTED);
+                journal.record(done, State.DONE);
+                journal.record(failed, State.STARTED);
+                journal.record(failed, State.FAILED);
+            }
+            try (var journal = Journal.open("test", sandbox.toPath(), true)) {
+                assertTrue(journal.isDone(done));
+                assertFalse(journal.isDone(failed));
+            }
+            // Without resuming, the last run is forgotten
+            try (var journal = Journal.open("test", sandbox.toPath(), false)) {
+                assertFalse(journal.isDone(done));
+                assertEquals(0, journal.getJournalFile().length());
+            }
+        });
+    }
+
+    @Test
+    public void testRecover() {
+        var sb = sandbox();
+        sb.runTest((File sandbox) -> {
+            // Interrupted while packing: the original is still there
+            var restarted = sb.copyResource("/compressed/test.cbr", "restarted.cbr");
+            var restartedDirectory = new File(sandbox, "restarted");
+            assertTrue(restartedDirectory.mkdir());
+            var restartedPartial = new File(sandbox, "Restarted.cbz.part");
+            Files.writeString(restartedPartial.toPath(), "half a comic");
+            // Interrupted right after the backup: only putting the new comic in place was missing
+            var finished = new File(sandbox, "finished.cbr");
+            var finishedDirectory = new File(sandbox, "finished");
+            assertTrue(finishedDirectory.mkdir());
+            var finishedPartial = new File(sandbox, "Finished.cbz.part");
+            Files.writeString(finishedPartial.toPath(), "a whole comic");
+            try (var journal = Journal.open("test", sandbox.toPath(), false)) {
+                for (var entry: new File[] { restarted, finished }) journal.record(entry, State.STARTED);
+                journal.record(restarted, State.EXTRACTING, restartedDirectory);
+                journal.record(restarted, State.PACKING, restartedPartial);
+                journal.record(finished, State.EXTRACTING, finishedDirectory);
+                journal.record(finished, State.PACKING, finishedPartial);
+            }
+            try (var journal = Journal.open("test", sandbox.toPath(), true)) {
+                journal.recover();
+                assertTrue(restarted.exists());
+                assertFalse(restartedDirectory.exists());
+                assertFalse(restartedPartial.exists());
+                assertFalse(journal.isDone(restarted));
+                assertFalse(finishedDirectory.exists());
+                assertFalse(finishedPartial.exists());
+                assertEquals("a whole comic", Files.readString(new File(sandbox, "Finished.cbz").toPath()));
+                assertTrue(journal.isDone(finished));
+            }
+        });
+    }
+}
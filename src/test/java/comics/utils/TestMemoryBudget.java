@@ -0,0 +1,66 @@
+package comics.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrowsExactly;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestMemoryBudget {
+
+    @Test
+    public void testConfigure() {
+        MemoryBudget.configure("100");
+        assertEquals(100L * 1024 * 1024, MemoryBudget.get().getBudget());
+        MemoryBudget.configure(null);
+        assertEquals((long) (Runtime.getRuntime().maxMemory() * 0.75), MemoryBudget.get().getBudget());
+        assertThrowsExactly(IllegalArgumentException.class, () -> MemoryBudget.configure("-1"));
+    }
+
+    @Test
+    public void testWeightedAdmission() throws Exception {
+        var budget = new MemoryBudget(100);
+        var inUse = new AtomicLong(0);
+        var maxInUse = new AtomicLong(0);
+        try (var pool = Executors.newFixedThreadPool(8)) {
+            for (var i = 0; i < 40; i++) {
+                var cost = 10L + (i % 4) * 20;
+                pool.submit(() -> {
+                    var taken = budget.acquire(cost);
+                    try {
+                        maxInUse.accumulateAndGet(inUse.addAndGet(taken), Math::max);
+                        Thread.sleep(2);
+                        inUse.addAndGet(-taken);
+                    } finally {
+                        budget.release(taken);
+                    }
+                    return null;
+                });
+            }
+        }
+        assertTrue(maxInUse.get() <= 100);
+        assertEquals(100, budget.getAvailable());
+    }
+
+    @Test
+    public void testOversizedJobRunsAlone() throws Exception {
+        var budget = new MemoryBudget(100);
+        var small = budget.acquire(10);
+        try (var pool = Executors.newSingleThreadExecutor()) {
+            var big = pool.submit(() -> budget.acquire(1000));
+            Thread.sleep(50);
+            // Waiting for the small job
+            assertFalse(big.isDone());
+            budget.release(small);
+            // The whole budget, not more
+            assertEquals(100, big.get());
+            assertEquals(0, budget.getAvailable());
+            budget.release(big.get());
+        }
+        assertEquals(100, budget.getAvailable());
+    }
+}
@@ -0,0 +1,79 @@
+package comics.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrowsExactly;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestPipeline {
+
+    private static class Job {
+        private final int id;
+        private final List<String> stages = Collections.synchronizedList(new ArrayList<>());
+
+        Job(int id) {
+            this.id = id;
+        }
+    }
+
+    @Test
+    public void testStagesInOrder() throws Exception {
+        var jobs = new ArrayList<Job>();
+        for (var i = 0; i < 20; i++) jobs.add(new Job(i));
+        try (
+            var pipeline = new Pipeline<Job>()
+                .stage("first", 3, job -> job.stages.add("first"))
+                .stage("second", 1, job -> job.stages.add("second"))
+                .stage("third", 2, job -> job.stages.add("third"));
+            var callers = Executors.newFixedThreadPool(4)
+        ) {
+            for (var job : jobs) callers.submit(() -> { pipeline.process(job); return null; });
+            callers.shutdown();
+            callers.awaitTermination(1, java.util.concurrent.TimeUnit.MINUTES);
+            var report = pipeline.report();
+            assertTrue(report.contains("first"));
+            assertTrue(report.contains("third"));
+        }
+        for (var job : jobs) assertEquals(List.of("first", "second", "third"), job.stages);
+    }
+
+    @Test
+    public void testFailureStopsTheJob() throws Exception {
+        var third = new AtomicInteger(0);
+        try (
+            var pipeline = new Pipeline<Job>()
+                .stage("first", 1, job -> {})
+                .stage("second", 1, job -> { if (job.id % 2 == 0) throw new IOException("even " + job.id); })
+                .stage("third", 1, job -> third.incrementAndGet())
+        ) {
+            var exception = assertThrowsExactly(IOException.class, () -> pipeline.process(new Job(2)));
+            assertEquals("even 2", exception.getMessage());
+            pipeline.process(new Job(3));
+        }
+        assertEquals(1, third.get());
+    }
+
+    @Test
+    public void testErrorsReachTheCaller() throws Exception {
+        var second = new AtomicInteger(0);
+        try (
+            var pipeline = new Pipeline<Job>()
+                .stage("first", 1, job -> { if (job.id == 1) throw new AssertionError("job " + job.id); })
+                .stage("second", 1, job -> second.incrementAndGet())
+        ) {
+            var error = assertThrowsExactly(AssertionError.class, () -> pipeline.process(new Job(1)));
+            assertEquals("job 1", error.getMessage());
+            // The worker is still there for the next job
+            pipeline.process(new Job(2));
+        }
+        assertEquals(1, second.get());
+    }
+}
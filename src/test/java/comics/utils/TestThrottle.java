@@ -0,0 +1,121 @@
+package comics.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrowsExactly;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestThrottle {
+
+    // Every command configures the throttles again, but tests calling the services directly would inherit them
+    @AfterEach
+    public void resetThrottles() {
+        Throttle.configure(null, null);
+    }
+
+    @Test
+    public void testConfigure() {
+        Throttle.configure("3", null);
+        assertEquals(3, Throttle.cpu().getMaxPermits());
+        assertEquals(3, Throttle.cpu().getPermits());
+        assertEquals(Runtime.getRuntime().availableProcessors(), Throttle.io().getMaxPermits());
+        Throttle.configure(null, "auto");
+        // Adaptive throttles start with a single job
+        assertEquals(1, Throttle.io().getPermits());
+        assertThrowsExactly(IllegalArgumentException.class, () -> Throttle.configure("0", null));
+        assertThrowsExactly(IllegalArgumentException.class, () -> Throttle.configure(null, "many"));
+    }
+
+    @Test
+    public void testLimit() throws Exception {
+        var throttle = new Throttle(2, false);
+        var running = new AtomicInteger(0);
+        var maxRunning = new AtomicInteger(0);
+        try (var pool = Executors.newFixedThreadPool(8)) {
+            for (var i = 0; i < 32; i++)
+                pool.submit(() -> {
+                    throttle.acquire();
+                    try {
+                        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                        Thread.sleep(5);
+                        running.decrementAndGet();
+                    } finally {
+                        throttle.release(0);
+                    }
+                    return null;
+                });
+        }
+        assertEquals(2, maxRunning.get());
+    }
+
+    @Test
+    public void testAdaptiveSettlesWhenThroughputStops() throws Exception {
+        var throttle = new Throttle(8, true);
+        // Every job takes the same time no matter how many run at once: more than two jobs is no improvement
+        for (var round = 0; round < 20; round++) {
+            var permits = throttle.getPermits();
+            for (var i = 0; i < permits; i++) throttle.acquire();
+            Thread.sleep(20);
+            for (var i = 0; i < permits; i++) throttle.release(Math.min(permits, 2) * 1000L / permits);
+        }
+        assertTrue(throttle.getPermits() <= 2);
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = { false, true })
+    public void testCpuStagesAreGated(boolean virtualThreads) throws Exception {
+        // Jobs admitted by the I/O throttle still run their CPU-heavy stages within --threads
+        Throttle.configure("2", "8", virtualThreads);
+        assertEquals(virtualThreads, Throttle.isVirtualThreads());
+        var running = new AtomicInteger(0);
+        var maxRunning = new AtomicInteger(0);
+        try (var executor = virtualThreads ? Executors.newVirtualThreadPerTaskExecutor() : Executors.newFixedThreadPool(8)) {
+            for (var i = 0; i < 32; i++)
+                executor.submit(() -> {
+                    try (var ignored = Throttle.cpuStage()) {
+                        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                        Thread.sleep(5);
+                        running.decrementAndGet();
+                    }
+                    return null;
+                });
+        }
+        assertEquals(2, maxRunning.get());
+    }
+
+    @Test
+    public void testNestedStagesTakeNoOtherPermit() throws Exception {
+        Throttle.configure("1", null);
+        // With a single permit, a writer checksumming inside the stage of whoever feeds it would never get in
+        var result = Throttle.inCpuStage(() -> Throttle.inCpuStage(() -> 42));
+        assertEquals(42, result);
+        // And the permit is back once the outer stage is over
+        try (var executor = Executors.newSingleThreadExecutor()) {
+            assertEquals(1, executor.submit(() -> Throttle.inCpuStage(() -> 1)).get());
+        }
+    }
+
+    @Test
+    public void testVirtualThreadsLiftTheIoLimit() {
+        Throttle.configure("2", null, true);
+        assertEquals(Integer.MAX_VALUE, Throttle.io().getMaxPermits());
+        Throttle.configure("2", null, false);
+        assertEquals(Runtime.getRuntime().availableProcessors(), Throttle.io().getMaxPermits());
+    }
+
+    @Test
+    public void testThreadsPerCpuJob() {
+        var processors = Runtime.getRuntime().availableProcessors();
+        Throttle.configure(String.valueOf(processors), null);
+        assertEquals(1, Throttle.threadsPerCpuJob());
+        Throttle.configure("1", null);
+        assertEquals(processors, Throttle.threadsPerCpuJob());
+    }
+}